@@ -14,7 +14,6 @@ public class GetPOS {
       CorpusType corpusType,
       String puncSymbol, 
       int filterLength) {
-    List<String[]> posSent = new ArrayList<String[]>();
     final CorpusConstraints cc;
     final Iterable<LabeledBracketSet> treeiter;
     switch (corpusType) {
@@ -36,7 +35,15 @@ public class GetPOS {
       default:
         throw new RuntimeException("Unexpected file type: " + corpusType);
     }
+    return getPos(treeiter, cc, puncSymbol, filterLength);
+  }
 
+  public static String[][] getPos(
+      Iterable<LabeledBracketSet> treeiter,
+      CorpusConstraints cc,
+      String puncSymbol,
+      int filterLength) {
+    List<String[]> posSent = new ArrayList<String[]>();
     for (LabeledBracketSet lbs: treeiter) {
       String[] pos = lbs.getPos();
       String[] tok = lbs.getTokensS();
@@ -11,6 +11,7 @@ import java.util.List;
 import upparse.corpus.Alpha;
 import upparse.corpus.ChunkedCorpus;
 import upparse.corpus.ChunkedSegmentedCorpus;
+import upparse.corpus.CompiledCorpus;
 import upparse.corpus.CorpusError;
 import upparse.corpus.CorpusType;
 import upparse.corpus.CorpusUtil;
@@ -26,11 +27,13 @@ import upparse.eval.EvalManager;
 import upparse.eval.EvalReportType;
 import upparse.model.Chunker;
 import upparse.model.ChunkerError;
+import upparse.model.ForwardBackwardType;
 import upparse.model.SequenceModel;
 import upparse.model.SequenceModelChunker;
 import upparse.model.SequenceModelError;
 import upparse.model.SequenceModelType;
 import upparse.model.SimpleChunker;
+import upparse.model.ValidationLevel;
 import upparse.util.Util;
 
 /**
@@ -45,7 +48,10 @@ public class Main {
 
   private static final String CCLPARSER_EVAL_ACTION = "cclp-eval";
   private static final String CHUNK_ACTION = "chunk";
+  private static final String TRAIN_MODEL_ACTION = "train-model";
+  private static final String APPLY_MODEL_ACTION = "apply-model";
   private static final String DUMP_TEXT_ACTION = "dump-text";
+  private static final String COMPILE_CORPUS_ACTION = "compile-corpus";
   private static final Object DUMP_CLUMPS_ACTION = "dump-clumps";
   private static final Object DUMP_NPS_ACTION = "dump-nps";
 
@@ -61,6 +67,9 @@ public class Main {
   private String[] trainCorpusString = null;
   private CorpusType trainFileType = CorpusType.WSJ;
   private int trainSents = -1;
+  private int streamBatch = -1;
+  private int stepBatch = -1;
+  private double stepDecay = .7;
   private StopSegmentCorpus trainStopSegmentCorpus;
   private double smooth = 0.1;
   private SequenceModelType chunkerType = SequenceModelType.PRLG;
@@ -74,6 +83,10 @@ public class Main {
   private ChunkedSegmentedCorpus trainChunkedSegmentedCorpus;
   private String outputString;
   private boolean outputPos = false;
+  private int threads = 1;
+  private ForwardBackwardType fbType = ForwardBackwardType.LOG;
+  private ValidationLevel validation = ValidationLevel.SAMPLED;
+  private String modelFile = null;
 
   private Main(final String[] args) throws CommandLineError, IOException,
       EvalError, EncoderError, CorpusError {
@@ -142,6 +155,15 @@ public class Main {
         else if (arg.equals("-numtrain"))
           trainSents = Integer.parseInt(args[i++]);
 
+        else if (arg.equals("-streamTrain"))
+          streamBatch = Integer.parseInt(args[i++]);
+
+        else if (arg.equals("-stepwise"))
+          stepBatch = Integer.parseInt(args[i++]);
+
+        else if (arg.equals("-stepDecay"))
+          stepDecay = Double.parseDouble(args[i++]);
+
         else if (arg.equals("-test")) {
           final List<String> sb = new ArrayList<String>();
           while (i < args.length && args[i].charAt(0) != '-')
@@ -168,6 +190,18 @@ public class Main {
         else if (arg.equals("-iterations"))
           iter = Integer.parseInt(args[i++]);
 
+        else if (arg.equals("-threads"))
+          threads = Integer.parseInt(args[i++]);
+
+        else if (arg.equals("-forwardBackward"))
+          fbType = ForwardBackwardType.valueOf(args[i++]);
+
+        else if (arg.equals("-validate"))
+          validation = ValidationLevel.valueOf(args[i++]);
+
+        else if (arg.equals("-model"))
+          modelFile = args[i++];
+
         else if (arg.equals("-emdelta"))
           emdelta = Float.parseFloat(args[i++]);
 
@@ -187,6 +221,16 @@ public class Main {
           otherArgs.add(arg);
       }
 
+      if (stepDecay <= .5 || stepDecay > 1)
+        throw new CommandLineError(
+            "-stepDecay must be above 0.5 and at most 1");
+      if (stepBatch > 0 && !encoder.hasSingleTagEos())
+        throw new CommandLineError("-stepwise does not support -G "
+            + encoder.getType() + ", whose sentence boundaries take more "
+            + "than one tag");
+
+      SequenceModel.setValidationLevel(validation);
+
       this.args = otherArgs.toArray(new String[0]);
       this.action = this.args[0];
 
@@ -196,6 +240,7 @@ public class Main {
 
       // Setup evalManager
       evalManager.setNoSeg(noSeg);
+      evalManager.setNumThreads(threads);
       evalManager.setReverseEval(reverse);
 
       if (testCorpusString.length == 1
@@ -225,7 +270,7 @@ public class Main {
   }
 
   public void writeMetadata(final PrintStream s) {
-    if (action.equals(CHUNK_ACTION)) {
+    if (action.equals(CHUNK_ACTION) || action.equals(TRAIN_MODEL_ACTION)) {
       s.println(currentDate());
       s.println("Chunk experiment");
       s.println("  Experiment strategy: " + chunkingStrategy);
@@ -238,11 +283,30 @@ public class Main {
       s.println("  BIO encoder: " + encoder.getClass().getSimpleName());
       if (filterTrain > 0)
         s.println("  Filter train by len: " + filterTrain);
+      if (streamBatch > 0)
+        s.println("  Stream train in batches of: " + streamBatch);
+      if (stepBatch > 0) {
+        s.println("  Stepwise EM mini-batch: " + stepBatch);
+        s.println("  Stepwise EM step decay: " + stepDecay);
+      }
       s.println("  Smoothing param: " + smooth);
+      if (threads > 1)
+        s.println("  Threads: " + threads);
+      s.println("  Forward-backward: " + fbType);
+      s.println("  Model validation: " + validation);
       s.println("  Train files:");
       for (final String f : trainCorpusString)
         s.println("    " + f);
       s.println("  Train file type: " + trainFileType);
+      if (modelFile != null)
+        s.println("  Model file: " + modelFile);
+      evalManager.writeMetadata(s);
+    }
+
+    else if (action.equals(APPLY_MODEL_ACTION)) {
+      s.println(currentDate());
+      s.println("Apply saved model");
+      s.println("  Model file: " + modelFile);
       evalManager.writeMetadata(s);
     }
   }
@@ -276,9 +340,18 @@ public class Main {
             + CHUNK_ACTION
             + "\n"
             + "  "
+            + TRAIN_MODEL_ACTION
+            + "\n"
+            + "  "
+            + APPLY_MODEL_ACTION
+            + "\n"
+            + "  "
             + DUMP_TEXT_ACTION
             + "\n"
             + "  "
+            + COMPILE_CORPUS_ACTION
+            + "\n"
+            + "  "
             + CCLPARSER_EVAL_ACTION
             + "\n"
             + "\n"
@@ -290,11 +363,23 @@ public class Main {
             + "  -train FILES        Train using specified files\n"
             + "  -filterTrain N      Train only on sentences of len <= N\n"
             + "  -numtrain N         Train only on the first N sentences\n"
+            + "                      (with either of these, treebank vocabulary covers\n"
+            + "                      only the sentences kept, so scores differ from\n"
+            + "                      earlier versions, which coded the whole treebank)\n"
+            + "  -streamTrain N      Read BIN train files N sentences at a time on each\n"
+            + "                      pass, rather than holding them in memory; not\n"
+            + "                      with BIO_GP, whose sentence boundaries take\n"
+            + "                      more than one tag\n"
+            + "  -stepwise N         Stepwise online EM, updating the model after each\n"
+            + "                      mini-batch of N sentences, also with\n"
+            + "                      -streamTrain; not with BIO_GP\n"
+            + "  -stepDecay A        Stepwise EM step size decay, in (0.5, 1] (default .7)\n"
             + "  -filterTest N       Evaluate only on sentences of len <= N\n"
             + "  -test FILES         Evaluated on specified files\n"
             + "  -trainFileType X    Train files file type (eg WSJ)\n"
             + "  -testFileType X     Test files file type (eg WSJ)\n"
             + "  -output FILE        Set output file/template\n"
+            + "  -outputTo FILE      Output file for dump-text and compile-corpus\n"
             + "  -outputType T       Output type (see eval types)\n"
             + "  -cclpOutput F       Output of CCLParser for comparison calc\n"
             + "  -outputAll          Produce model output for all EM iterations\n"
@@ -304,6 +389,12 @@ public class Main {
             + "  -e|-evalTypes E1,E2 Evaluation types \n"
             + "  -iterations N       Iterations of EM\n"
             + "  -emdelta D          Halt EM when data perplexity change is less than\n"
+            + "  -threads N          Read files, chunk, run EM and tag on N threads\n"
+            + "  -forwardBackward K  LOG or SCALED forward-backward for EM\n"
+            + "  -validate V         Check model distributions after each update:\n"
+            + "                      OFF, SAMPLED (default) or FULL. A failed check\n"
+            + "                      stops the run even without -ea\n"
+            + "  -model FILE         Model file to save (train-model) or load (apply-model)\n"
             + "  -smooth V           Smoothing parameter for emissions probabilities\n"
             + "  -dontCheckTerms     Don't check that the eval and output terms are equal\n"
             + "  -onlyLast           Only show evaluation of last itertation of EM\n"
@@ -313,6 +404,8 @@ public class Main {
             + "  CTB    : Penn Chinese Treebank corpus\n"
             + "  SPL    : Sentence per line\n"
             + "  WPL    : Word per line (sentences seperated by blank lines)\n"
+            + "  BIN    : Binary corpus written by " + COMPILE_CORPUS_ACTION 
+            + " (at most 2GB)\n"
             + "\n" + OutputType.outputTypesHelp() + "\n\n"
             + Eval.evalReportHelp() + "\n\n"
             + TagEncoder.encoderTypeHelp());
@@ -329,13 +422,13 @@ public class Main {
         "Creating train corpus from %d documents\n", trainCorpusString.length);
     trainStopSegmentCorpus = CorpusUtil.stopSegmentCorpus(alpha,
         trainCorpusString, trainFileType, trainSents, filterTrain, noSeg,
-        reverse);
+        reverse, threads);
     assert trainStopSegmentCorpus != null;
   }
 
   private SimpleChunker getSimpleChunker() throws CorpusError {
     return SimpleChunker.fromStopSegmentCorpus(alpha,
-        getTrainStopSegmentCorpus(), getFactor());
+        getTrainStopSegmentCorpus(), getFactor(), threads);
   }
 
   private void evalChunker(final String comment, final Chunker chunker)
@@ -394,6 +487,9 @@ public class Main {
 
   private SequenceModel getSequenceModel() throws EncoderError,
       SequenceModelError, CorpusError, CommandLineError {
+    if (streamBatch > 0)
+      return getStreamedSequenceModel();
+
     final StopSegmentCorpus train = getTrainStopSegmentCorpus();
     outputManager.getStatusStream().format(
         "Training sequence model with %d sentences, using %s\n", train.size(),
@@ -432,6 +528,70 @@ public class Main {
     }
   }
 
+  /**
+   * Estimate the initial model from the compiled training corpus read in
+   * batches, and have EM read it the same way, so that the training corpus
+   * is never held in memory
+   */
+  private SequenceModel getStreamedSequenceModel() throws EncoderError,
+      SequenceModelError, CorpusError, CommandLineError {
+    if (trainFileType != CorpusType.BIN)
+      throw new CommandLineError("-streamTrain requires -trainFileType BIN");
+    if (reverse)
+      throw new CommandLineError("-streamTrain does not support -reverse");
+    if (!encoder.hasSingleTagEos())
+      throw new CommandLineError("-streamTrain does not support -G "
+          + encoder.getType() + ", whose sentence boundaries take more than "
+          + "one tag");
+
+    final Iterable<StopSegmentCorpus> batches = CompiledCorpus.batches(alpha,
+        trainCorpusString, streamBatch, trainSents, filterTrain, noSeg);
+    Iterable<int[]> pieces = encoder.tokenStream(batches);
+    outputManager.getStatusStream().format(
+        "Training sequence model in batches of %d sentences, using %s\n",
+        streamBatch, chunkingStrategy);
+
+    final SequenceModel model;
+    switch (chunkingStrategy) {
+      case TWOSTAGE:
+        final SimpleChunker c = SimpleChunker.fromStopSegmentCorpora(alpha,
+            batches, getFactor(), threads);
+        final Iterable<ChunkedSegmentedCorpus> chunked =
+          c.chunkedCorpora(batches);
+        model = SequenceModel.fromCounts(chunkerType,
+            encoder.hardCounts(chunked), encoder, smooth);
+
+        // as in memory, EM runs over the chunker output
+        pieces = encoder.clumpedTokenStream(chunked);
+        break;
+
+      case SOFT:
+        model = SequenceModel.fromCounts(chunkerType,
+            encoder.softCounts(pieces), encoder, smooth);
+        break;
+
+      // these only need the vocabulary, which is all in alpha already
+      case UNIFORM:
+        model = SequenceModel.uniformEstimate(chunkerType,
+            StopSegmentCorpus.fromArrays(alpha, new int[0][][]), encoder,
+            smooth);
+        break;
+
+      case RANDOM:
+        model = SequenceModel.randomEstimate(chunkerType,
+            StopSegmentCorpus.fromArrays(alpha, new int[0][][]), encoder,
+            smooth);
+        break;
+
+      default:
+        throw new CommandLineError("Chunking strategy " + chunkingStrategy
+            + " needs the training corpus in memory");
+    }
+
+    model.setTrainStream(pieces);
+    return model;
+  }
+
   private void makeTrainChunkedSegmentedCorpusForNPs() {
     evalManager.setNoSeg(true);
     final ChunkedCorpus trainChunkedCorpus;
@@ -492,7 +652,37 @@ public class Main {
 
   private void chunk() throws CommandLineError, IOException, EvalError,
       ChunkerError, CorpusError, EncoderError, SequenceModelError {
-    chunkerEval(new SequenceModelChunker(getSequenceModel(), emdelta, iter));
+    final SequenceModel model = getSequenceModel();
+    model.setNumThreads(threads);
+    model.setForwardBackwardType(fbType);
+    if (stepBatch > 0)
+      model.setStepwiseEM(stepBatch, stepDecay);
+    chunkerEval(new SequenceModelChunker(model, emdelta, iter));
+  }
+
+  private void trainModel() throws CommandLineError, IOException, EvalError,
+      ChunkerError, CorpusError, EncoderError, SequenceModelError {
+    if (modelFile == null)
+      throw new CommandLineError("Please specify a model file with -model");
+    final SequenceModel model = getSequenceModel();
+    model.setNumThreads(threads);
+    model.setForwardBackwardType(fbType);
+    if (stepBatch > 0)
+      model.setStepwiseEM(stepBatch, stepDecay);
+    chunkerEval(new SequenceModelChunker(model, emdelta, iter));
+    outputManager.getStatusStream().format("Saving model to %s\n", modelFile);
+    model.save(modelFile);
+  }
+
+  private void applyModel() throws CommandLineError, IOException, EvalError,
+      ChunkerError, CorpusError, EncoderError, SequenceModelError {
+    if (modelFile == null)
+      throw new CommandLineError("Please specify a model file with -model");
+    final SequenceModel model = SequenceModel.load(modelFile, alpha);
+    model.setNumThreads(threads);
+    evalChunker("Model", new SequenceModelChunker(model, emdelta, 0)
+        .getCurrentChunker());
+    writeOutput();
   }
 
   private void cclpEval() throws EvalError, IOException, CorpusError {
@@ -510,9 +700,19 @@ public class Main {
   private void dumpText() throws IOException, CorpusError {
     StopSegmentCorpus corpus = CorpusUtil.stopSegmentCorpus(alpha,
         Arrays.copyOfRange(args, 1, args.length), trainFileType, trainSents,
-        filterTrain, noSeg, reverse);
+        filterTrain, noSeg, reverse, threads);
     corpus.writeTokenizedPlaintextTo(outputString);
   }
+
+  /** Write the corpus files to a binary corpus that loads as type BIN */
+  private void compileCorpus() throws IOException, CorpusError {
+    if (outputString == null)
+      throw new CorpusError("Please specify the compiled corpus with -outputTo");
+    final StopSegmentCorpus corpus = CorpusUtil.stopSegmentCorpus(alpha,
+        Arrays.copyOfRange(args, 1, args.length), trainFileType, trainSents,
+        filterTrain, noSeg, false, threads);
+    CompiledCorpus.write(corpus, outputString);
+  }
   
   public static void main(final String[] argv) {
     try {
@@ -526,11 +726,20 @@ public class Main {
       if (prog.action.equals(CHUNK_ACTION))
         prog.chunk();
 
+      else if (prog.action.equals(TRAIN_MODEL_ACTION))
+        prog.trainModel();
+
+      else if (prog.action.equals(APPLY_MODEL_ACTION))
+        prog.applyModel();
+
       else if (prog.action.equals(CCLPARSER_EVAL_ACTION))
         prog.cclpEval();
 
       else if (prog.action.equals(DUMP_TEXT_ACTION))
         prog.dumpText();
+
+      else if (prog.action.equals(COMPILE_CORPUS_ACTION))
+        prog.compileCorpus();
       
       else if (prog.action.equals(DUMP_CLUMPS_ACTION)) {
         String[][] altText = prog.outputPos ? prog.getTestPos() : null;
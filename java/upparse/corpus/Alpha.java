@@ -8,8 +8,17 @@ import java.util.*;
  */
 public class Alpha {
   
-  private final Map<String, Integer> stoi = new HashMap<String, Integer>(50000);
+  private final Map<String, Integer> stoi;
   private final List<String> itos = new ArrayList<String>();
+
+  public Alpha() {
+    this(50000);
+  }
+
+  /** @param capacity Number of terms expected */
+  public Alpha(final int capacity) {
+    stoi = new HashMap<String, Integer>(capacity);
+  }
   
   public int getCode(String term) {
     if (stoi.containsKey(term))
@@ -5,14 +5,19 @@ package upparse.corpus;
  */
 public class CTBCorpusTreeIter extends CorpusTreeIter {
 
-  private CTBCorpusTreeIter(
-      final Iterable<String> strIter, final Alpha _alpha) {
-    super(strIter, _alpha);
+  private CTBCorpusTreeIter(final Iterable<String> strIter,
+      final Alpha _alpha, final int numThreads) {
+    super(strIter, _alpha, numThreads);
   }
   
   public static CorpusTreeIter fromFiles(
       final String[] files, final Alpha alpha) {
+    return fromFiles(files, alpha, 1);
+  }
+
+  public static CorpusTreeIter fromFiles(
+      final String[] files, final Alpha alpha, final int numThreads) {
     return new CTBCorpusTreeIter(
-        CTBCorpusTreeStringIter.fromFiles(files), alpha);
+        CTBCorpusTreeStringIter.fromFiles(files), alpha, numThreads);
   }
 }
@@ -8,12 +8,7 @@ import java.io.*;
 public class CTBFileTreeStringIter extends FileTreeStringIter {
 
   public CTBFileTreeStringIter(String file) throws IOException {
-    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
-    int n = 0;
-    while (br.readLine() != null) n++;
-    br.close();
-    br =  new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
-    init(br, n);
+    super(file);
   }
 
   @Override
@@ -80,21 +80,19 @@ public class ChunkedCorpus {
         
   public static ChunkedCorpus fromChunkedSegmentedCorpus(
       ChunkedSegmentedCorpus c) {
-    int[][][][] csArr = c.getArrays();
-    int[][][] arr = new int[csArr.length][][];
+    int[][][] arr = new int[c.nSentences()][][];
     
-    int numClumps, i, j;
+    int first, i, j;
     for (i = 0; i < arr.length; i++) {
-      numClumps = 0;
-      for (int[][] seg: csArr[i]) 
-        numClumps += seg.length;
+      // the chunks of a sentence are contiguous across its segments
+      first = c.chunkStart(c.segmentStart(i));
+      arr[i] = new int[c.chunkStart(c.segmentEnd(i)) - first][];
       
-      arr[i] = new int[numClumps][];
-      
-      j = 0;
-      for (int[][] seg: csArr[i])
-        for (int[] clump: seg)
-          arr[i][j++] = clump;
+      for (j = 0; j < arr[i].length; j++) {
+        arr[i][j] = new int[c.tokenEnd(first + j) - c.tokenStart(first + j)];
+        for (int k = 0; k < arr[i][j].length; k++)
+          arr[i][j][k] = c.token(c.tokenStart(first + j) + k);
+      }
     }
     
     return new ChunkedCorpus(arr, c.alpha);
@@ -6,6 +6,10 @@ import java.util.*;
 import upparse.util.*;
 
 /**
+ * Corpus of sentences split into segments, and segments into chunks. Tokens
+ * are stored in one flat array, with offset arrays marking where each
+ * sentence, segment and chunk begins.
+ *
  * @author eponvert@utexas.edu (Elias Ponvert)
  */
 public class ChunkedSegmentedCorpus implements Corpus {
@@ -16,15 +20,99 @@ public class ChunkedSegmentedCorpus implements Corpus {
     Collection<UnlabeledBracket> conv(int[][][] s);
   }
   
-  private int[][][][] corpus;
+  /** Codes of all tokens, sentence after sentence */
+  private int[] tokens;
+
+  /** Sentence i is segments sentOffsets[i] up to sentOffsets[i+1] */
+  private int[] sentOffsets;
+
+  /** Segment j is chunks segOffsets[j] up to segOffsets[j+1] */
+  private int[] segOffsets;
+
+  /** Chunk k is tokens chunkOffsets[k] up to chunkOffsets[k+1] */
+  private int[] chunkOffsets;
+
   final Alpha alpha;
   
-  private ChunkedSegmentedCorpus(final int[][][][] _corpus, final Alpha _alpha) {
-    corpus = _corpus;
+  ChunkedSegmentedCorpus(final int[] _tokens, final int[] _sentOffsets,
+      final int[] _segOffsets, final int[] _chunkOffsets, final Alpha _alpha) {
+    tokens = _tokens;
+    sentOffsets = _sentOffsets;
+    segOffsets = _segOffsets;
+    chunkOffsets = _chunkOffsets;
     alpha = _alpha;
   }
 
+  /** First segment of sentence <code>sent</code> */
+  public int segmentStart(final int sent) {
+    return sentOffsets[sent];
+  }
+
+  /** End (exclusive) of the segments of sentence <code>sent</code> */
+  public int segmentEnd(final int sent) {
+    return sentOffsets[sent + 1];
+  }
+
+  /** First chunk of segment <code>seg</code> */
+  public int chunkStart(final int seg) {
+    return segOffsets[seg];
+  }
+
+  /** End (exclusive) of the chunks of segment <code>seg</code> */
+  public int chunkEnd(final int seg) {
+    return segOffsets[seg + 1];
+  }
+
+  /** First token of chunk <code>chunk</code> */
+  public int tokenStart(final int chunk) {
+    return chunkOffsets[chunk];
+  }
+
+  /** End (exclusive) of the tokens of chunk <code>chunk</code> */
+  public int tokenEnd(final int chunk) {
+    return chunkOffsets[chunk + 1];
+  }
+
+  public int token(final int t) {
+    return tokens[t];
+  }
+
+  public int numTokens() {
+    return tokens.length;
+  }
+
+  /** First token of sentence <code>sent</code> */
+  private int sentTokenStart(final int sent) {
+    return chunkOffsets[segOffsets[sentOffsets[sent]]];
+  }
+
+  public int sentenceLength(final int sent) {
+    return sentTokenStart(sent + 1) - sentTokenStart(sent);
+  }
+
+  /** @return sentence <code>i</code> as arrays of segments of chunks */
+  public int[][][] getSentence(final int i) {
+    final int[][][] sent = new int[segmentEnd(i) - segmentStart(i)][][];
+    for (int j = 0; j < sent.length; j++) {
+      final int seg = segmentStart(i) + j;
+      sent[j] = new int[chunkEnd(seg) - chunkStart(seg)][];
+      for (int k = 0; k < sent[j].length; k++) {
+        final int chunk = chunkStart(seg) + k;
+        sent[j][k] = 
+          Arrays.copyOfRange(tokens, tokenStart(chunk), tokenEnd(chunk));
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * @return a copy of the corpus as nested arrays, built anew on every call;
+   *         loops over the corpus should use the offset accessors instead
+   */
   public int[][][][] getArrays() {
+    final int[][][][] corpus = new int[nSentences()][][][];
+    for (int i = 0; i < corpus.length; i++)
+      corpus[i] = getSentence(i);
     return corpus;
   }
 
@@ -111,7 +199,7 @@ public class ChunkedSegmentedCorpus implements Corpus {
       new UnlabeledBracketSet[nSentences()];
     
     for (int i = 0; i < nSentences(); i++) {
-      final Collection<UnlabeledBracket> brackets = b.conv(corpus[i]);
+      final Collection<UnlabeledBracket> brackets = b.conv(getSentence(i));
       outputUB[i] = new UnlabeledBracketSet(tokens(i), brackets, alpha, countRoot);
     }
     
@@ -144,12 +232,12 @@ public class ChunkedSegmentedCorpus implements Corpus {
           
           @Override
           public String next() {
-            return clumps2str(corpus[i++]);
+            return clumps2str(getSentence(i++));
           }
           
           @Override
           public boolean hasNext() {
-            return i < corpus.length;
+            return i < nSentences();
           }
         };
       }
@@ -205,21 +293,17 @@ public class ChunkedSegmentedCorpus implements Corpus {
   
   private void writeToUnderscoreCCL(BufferedWriter bw, String[][] outputText) 
   throws IOException {
-    GetString getString = 
-      GetString.altGetString(outputText, toChunkedCorpus().getArrays(), alpha);
-
-    for (int sent = 0; sent < corpus.length; sent++) {
-      int chunkI = 0;
-      for (int[][] seg: corpus[sent]) {
-        for (int[] chunk: seg) {
-          for (int wrd = 0; wrd < chunk.length; wrd++) {
-            bw.write(getString.getString(sent, chunkI, wrd));
-            if (wrd == chunk.length - 1)
+    for (int sent = 0; sent < nSentences(); sent++) {
+      for (int seg = segmentStart(sent); seg < segmentEnd(sent); seg++) {
+        for (int chunk = chunkStart(seg); chunk < chunkEnd(seg); chunk++) {
+          final int last = tokenEnd(chunk) - 1;
+          for (int t = tokenStart(chunk); t <= last; t++) {
+            bw.write(word(outputText, sent, t));
+            if (t == last)
               bw.write(' ');
             else
               bw.write('_');
           }
-          chunkI++;
         }
         bw.write(" ; ");
       }
@@ -231,22 +315,18 @@ public class ChunkedSegmentedCorpus implements Corpus {
 
   private void writeToWithPunc(BufferedWriter bw, String[][] textOutput) 
   throws IOException {
-    GetString getString = GetString.altGetString(
-        textOutput, toChunkedCorpus().getArrays(), alpha);
-    
-    for (int sent = 0; sent < corpus.length; sent++) {
-      int chunkI = 0;
-      for (int seg = 0; seg < corpus[sent].length; seg++) {
-        for (int[] chunk: corpus[sent][seg]) {
-          if (chunk.length > 1) 
+    for (int sent = 0; sent < nSentences(); sent++) {
+      for (int seg = segmentStart(sent); seg < segmentEnd(sent); seg++) {
+        for (int chunk = chunkStart(seg); chunk < chunkEnd(seg); chunk++) {
+          final int len = tokenEnd(chunk) - tokenStart(chunk);
+          if (len > 1) 
             bw.write("(");
-          for (int wrd = 0; wrd < chunk.length; wrd++) {
-            bw.write(getString.getString(sent, chunkI, wrd));
-            if (wrd < chunk.length - 1)
+          for (int t = tokenStart(chunk); t < tokenEnd(chunk); t++) {
+            bw.write(word(textOutput, sent, t));
+            if (t < tokenEnd(chunk) - 1)
               bw.write(' ');
           }
-          bw.write(chunk.length > 1 ? ") " : " ");
-          chunkI++;
+          bw.write(len > 1 ? ") " : " ");
         }
         bw.write(" ; ");
       }
@@ -255,45 +335,98 @@ public class ChunkedSegmentedCorpus implements Corpus {
     bw.close();
   }
 
+  /**
+   * @return the text of token <code>t</code> of sentence <code>sent</code>,
+   *         from <code>outputText</code> if it is not null
+   */
+  private String word(final String[][] outputText, final int sent,
+      final int t) {
+    if (outputText == null)
+      return alpha.getString(tokens[t]);
+    else
+      return outputText[sent][t - sentTokenStart(sent)];
+  }
+
 
   public static ChunkedSegmentedCorpus fromArrays(
       int[][][][] clumpedCorpus, Alpha alpha) {
-    return new ChunkedSegmentedCorpus(clumpedCorpus, alpha);
+    int nseg = 0, nchunk = 0, ntok = 0;
+    for (int[][][] sent: clumpedCorpus)
+      for (int[][] seg: sent) {
+        nseg++;
+        for (int[] chunk: seg) {
+          nchunk++;
+          ntok += chunk.length;
+        }
+      }
+
+    final int[] tokens = new int[ntok];
+    final int[] sentOffsets = new int[clumpedCorpus.length + 1];
+    final int[] segOffsets = new int[nseg + 1];
+    final int[] chunkOffsets = new int[nchunk + 1];
+    int i = 0, j = 0, k = 0, t = 0;
+    for (int[][][] sent: clumpedCorpus) {
+      sentOffsets[i++] = j;
+      for (int[][] seg: sent) {
+        segOffsets[j++] = k;
+        for (int[] chunk: seg) {
+          chunkOffsets[k++] = t;
+          System.arraycopy(chunk, 0, tokens, t, chunk.length);
+          t += chunk.length;
+        }
+      }
+    }
+    sentOffsets[i] = j;
+    segOffsets[j] = k;
+    chunkOffsets[k] = t;
+    return new ChunkedSegmentedCorpus(
+        tokens, sentOffsets, segOffsets, chunkOffsets, alpha);
+  }
+
+  /**
+   * Corpus over the given flat arrays, which are not copied
+   *
+   * @param tokens
+   *          Codes of all tokens, sentence after sentence
+   * @param sentOffsets
+   *          Sentence i is segments sentOffsets[i] up to sentOffsets[i+1]
+   * @param segOffsets
+   *          Segment j is chunks segOffsets[j] up to segOffsets[j+1]
+   * @param chunkOffsets
+   *          Chunk k is tokens chunkOffsets[k] up to chunkOffsets[k+1]
+   */
+  public static ChunkedSegmentedCorpus fromOffsets(int[] tokens,
+      int[] sentOffsets, int[] segOffsets, int[] chunkOffsets, Alpha alpha) {
+    assert sentOffsets[sentOffsets.length - 1] == segOffsets.length - 1;
+    assert segOffsets[segOffsets.length - 1] == chunkOffsets.length - 1;
+    assert chunkOffsets[chunkOffsets.length - 1] == tokens.length;
+    return new ChunkedSegmentedCorpus(
+        tokens, sentOffsets, segOffsets, chunkOffsets, alpha);
   }
 
+  /** @return a new nested-array copy of the corpus, without segments */
   public ChunkedCorpus toChunkedCorpus() {
     return ChunkedCorpus.fromChunkedSegmentedCorpus(this);
   }
 
   @Override
   public int nSentences() {
-    return corpus.length;
+    return sentOffsets.length - 1;
   }
 
   public int[] tokens(int i) {
-    int n = 0;
-    for (int[][] seg: corpus[i]) n += segLen(seg);
-    
-    final int[] tokens = new int[n];
-    int j = 0;
-    for (int[][] seg: corpus[i])
-      for (int[] chunk: seg)
-        for (int w: chunk)
-          tokens[j++] = w;
-    
-    return tokens;
+    return Arrays.copyOfRange(tokens, sentTokenStart(i), sentTokenStart(i + 1));
   }
 
   public Collection<UnlabeledBracket> chunkBrackets(int i) {
     final List<UnlabeledBracket> b = new ArrayList<UnlabeledBracket>();
-    int curr = 0;
-    for (int[][] seg: corpus[i]) {
-      b.add(new UnlabeledBracket(curr, curr + segLen(seg)));
-      for (int[] chunk: seg) {
-        final int next = curr + chunk.length;
-        b.add(new UnlabeledBracket(curr, next));
-        curr = next;
-      }
+    final int t0 = sentTokenStart(i);
+    for (int seg = segmentStart(i); seg < segmentEnd(i); seg++) {
+      b.add(new UnlabeledBracket(tokenStart(chunkStart(seg)) - t0,
+          tokenStart(chunkEnd(seg)) - t0));
+      for (int chunk = chunkStart(seg); chunk < chunkEnd(seg); chunk++)
+        b.add(new UnlabeledBracket(tokenStart(chunk) - t0, 
+            tokenEnd(chunk) - t0));
     }
     return b;
   }
@@ -354,15 +487,43 @@ public class ChunkedSegmentedCorpus implements Corpus {
   }
 
   public ChunkedSegmentedCorpus filter(int filterLen) {
-    List<int[][][]> newCorpusConstr = new ArrayList<int[][][]>();
-    for (int i = 0; i < corpus.length; i++)
-      if (tokens(i).length <= filterLen)
-        newCorpusConstr.add(corpus[i]);
-    int[][][][] newCorpus = newCorpusConstr.toArray(new int[0][][][]);
-    return new ChunkedSegmentedCorpus(newCorpus, alpha);
+    int nsent = 0, nseg = 0, nchunk = 0, ntok = 0;
+    for (int i = 0; i < nSentences(); i++)
+      if (sentenceLength(i) <= filterLen) {
+        nsent++;
+        nseg += segmentEnd(i) - segmentStart(i);
+        nchunk += chunkStart(segmentEnd(i)) - chunkStart(segmentStart(i));
+        ntok += sentenceLength(i);
+      }
+
+    final int[] _tokens = new int[ntok];
+    final int[] _sentOffsets = new int[nsent + 1];
+    final int[] _segOffsets = new int[nseg + 1];
+    final int[] _chunkOffsets = new int[nchunk + 1];
+    int s = 0, j = 0, k = 0, t = 0;
+    for (int i = 0; i < nSentences(); i++) {
+      if (sentenceLength(i) <= filterLen) {
+        _sentOffsets[s++] = j;
+        final int k0 = chunkStart(segmentStart(i)), t0 = sentTokenStart(i);
+        for (int seg = segmentStart(i); seg < segmentEnd(i); seg++)
+          _segOffsets[j++] = k + chunkStart(seg) - k0;
+        for (int chunk = k0; chunk < chunkStart(segmentEnd(i)); chunk++)
+          _chunkOffsets[k++] = t + tokenStart(chunk) - t0;
+        System.arraycopy(tokens, t0, _tokens, t, sentenceLength(i));
+        t += sentenceLength(i);
+      }
+    }
+    _sentOffsets[s] = j;
+    _segOffsets[j] = k;
+    _chunkOffsets[k] = t;
+    return new ChunkedSegmentedCorpus(
+        _tokens, _sentOffsets, _segOffsets, _chunkOffsets, alpha);
   }
 
   public void reverse() {
-    corpus = Util.reverse(corpus);
+    tokens = Util.reverse(tokens);
+    sentOffsets = Util.reverseOffsets(sentOffsets);
+    segOffsets = Util.reverseOffsets(segOffsets);
+    chunkOffsets = Util.reverseOffsets(chunkOffsets);
   }
 }
@@ -0,0 +1,12 @@
+package upparse.corpus;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An iterator over a resource that should be closed if iteration stops
+ * before the end
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+interface CloseableIterator<T> extends Iterator<T>, Closeable { }
@@ -0,0 +1,385 @@
+package upparse.corpus;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Binary file holding a stop-segment corpus and its vocabulary, so that
+ * repeat experiments can skip tokenizing the original corpus files. The file
+ * is a string table, in alphabet code order, followed by sentence offsets
+ * into the segments, segment offsets into the tokens and the token codes, all
+ * big-endian. Files are read back through a memory map.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public class CompiledCorpus {
+
+  /** "UPPC" */
+  private static final int MAGIC = 0x55505043;
+  private static final int VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private CompiledCorpus() { }
+
+  /** Bytes buffered at a time when writing */
+  private static final int WRITE_BUFFER = 1 << 16;
+
+  /**
+   * Write the corpus to <code>file</code>, along with every string in its
+   * alphabet, so that loading into an empty alphabet gives the same codes.
+   * The file is written through a small buffer, but since it is read back
+   * through a single memory map it may be at most 2GB.
+   */
+  public static void write(final StopSegmentCorpus corpus, final String file)
+      throws IOException {
+    final Alpha alpha = corpus.getAlpha();
+    final int nsent = corpus.sentOffsets.length - 1;
+    final int nseg = corpus.segOffsets.length - 1;
+    final int ntok = corpus.tokens.length;
+
+    long size = 4 * 6 + 4L * (nsent + 1 + nseg + 1 + ntok);
+    for (int i = 0; i < alpha.size(); i++)
+      size += 4 + alpha.getString(i).getBytes(UTF8).length;
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("Corpus too large to compile: " + size + " bytes");
+
+    final FileChannel channel = new FileOutputStream(file).getChannel();
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER);
+      buf.putInt(MAGIC);
+      buf.putInt(VERSION);
+      buf.putInt(alpha.size());
+      for (int i = 0; i < alpha.size(); i++) {
+        final byte[] s = alpha.getString(i).getBytes(UTF8);
+        ensureRoom(channel, buf, 4);
+        buf.putInt(s.length);
+        for (int off = 0; off < s.length; ) {
+          ensureRoom(channel, buf, 1);
+          final int n = Math.min(buf.remaining(), s.length - off);
+          buf.put(s, off, n);
+          off += n;
+        }
+      }
+      ensureRoom(channel, buf, 12);
+      buf.putInt(nsent);
+      buf.putInt(nseg);
+      buf.putInt(ntok);
+      putInts(channel, buf, corpus.sentOffsets);
+      putInts(channel, buf, corpus.segOffsets);
+      putInts(channel, buf, corpus.tokens);
+      flush(channel, buf);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static void putInts(final FileChannel channel, final ByteBuffer buf,
+      final int[] a) throws IOException {
+    for (int off = 0; off < a.length; ) {
+      ensureRoom(channel, buf, 4);
+      final int n = Math.min(buf.remaining() / 4, a.length - off);
+      final IntBuffer ints = buf.asIntBuffer();
+      ints.put(a, off, n);
+      buf.position(buf.position() + 4 * n);
+      off += n;
+    }
+  }
+
+  /** Flush <code>buf</code> if it has fewer than <code>n</code> bytes free */
+  private static void ensureRoom(final FileChannel channel,
+      final ByteBuffer buf, final int n) throws IOException {
+    if (buf.remaining() < n)
+      flush(channel, buf);
+  }
+
+  private static void flush(final FileChannel channel, final ByteBuffer buf)
+      throws IOException {
+    buf.flip();
+    while (buf.hasRemaining())
+      channel.write(buf);
+    buf.clear();
+  }
+
+  /**
+   * Read a corpus from <code>file</code>, coded in <code>alpha</code>
+   *
+   * @param noSeg
+   *          Put the whole of each sentence in one segment
+   */
+  public static StopSegmentCorpus read(final Alpha alpha, final String file,
+      final boolean noSeg) throws CorpusError {
+    final Mapped m = map(alpha, file);
+    final int nsent = m.nsent, nseg = m.nseg, ntok = m.ntok;
+    int[] sentOffsets = new int[nsent + 1];
+    int[] segOffsets = new int[nseg + 1];
+    final int[] tokens = new int[ntok];
+    m.sentOffsets.get(sentOffsets);
+    m.segOffsets.get(segOffsets);
+    m.tokens.get(tokens);
+    for (int i = 0; i < ntok; i++)
+      tokens[i] = m.code(tokens[i]);
+
+    if (noSeg) {
+      // one segment per sentence, spanning all of its tokens
+      final int[] sentSegs = new int[nsent + 1];
+      final int[] segTokens = new int[nsent + 1];
+      for (int i = 0; i <= nsent; i++) {
+        sentSegs[i] = i;
+        segTokens[i] = segOffsets[sentOffsets[i]];
+      }
+      sentOffsets = sentSegs;
+      segOffsets = segTokens;
+    }
+    return new StopSegmentCorpus(alpha, tokens, sentOffsets, segOffsets);
+  }
+
+  /** A mapped compiled corpus file, with its strings coded in an alphabet */
+  private static final class Mapped {
+    final String file;
+    final int[] codes;
+    final int nsent, nseg, ntok;
+    final IntBuffer sentOffsets, segOffsets, tokens;
+
+    Mapped(final String _file, final int[] _codes, final IntBuffer ints)
+        throws CorpusError {
+      file = _file;
+      codes = _codes;
+      nsent = ints.get();
+      nseg = ints.get();
+      ntok = ints.get();
+      sentOffsets = slice(ints, nsent + 1);
+      segOffsets = slice(ints, nseg + 1);
+      tokens = slice(ints, ntok);
+      if (sentOffsets.get(nsent) != nseg || segOffsets.get(nseg) != ntok)
+        throw corrupt();
+    }
+
+    private IntBuffer slice(final IntBuffer ints, final int n)
+        throws CorpusError {
+      if (ints.remaining() < n)
+        throw new CorpusError("Truncated compiled corpus: " + file);
+      final IntBuffer b = ints.slice();
+      b.limit(n);
+      ints.position(ints.position() + n);
+      return b;
+    }
+
+    /** @return the alphabet code of the string stored as <code>i</code> */
+    int code(final int i) throws CorpusError {
+      if (i < 0 || i >= codes.length)
+        throw corrupt();
+      return codes[i];
+    }
+
+    CorpusError corrupt() {
+      return new CorpusError("Corrupt compiled corpus: " + file);
+    }
+  }
+
+  /** Map <code>file</code> and code its string table in <code>alpha</code> */
+  private static Mapped map(final Alpha alpha, final String file)
+      throws CorpusError {
+    try {
+      final FileChannel channel = new FileInputStream(file).getChannel();
+      try {
+        if (channel.size() > Integer.MAX_VALUE)
+          throw new CorpusError("Compiled corpus too large: " + file);
+        final ByteBuffer buf =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if (buf.getInt() != MAGIC)
+          throw new CorpusError("Not a compiled corpus: " + file);
+        final int version = buf.getInt();
+        if (version != VERSION)
+          throw new CorpusError("Unsupported compiled corpus version: "
+              + version);
+
+        final int[] codes = new int[buf.getInt()];
+        for (int i = 0; i < codes.length; i++) {
+          final byte[] b = new byte[buf.getInt()];
+          buf.get(b);
+          codes[i] = alpha.getCode(new String(b, UTF8));
+        }
+        return new Mapped(file, codes, buf.asIntBuffer());
+      } finally {
+        channel.close();
+      }
+    } catch (BufferUnderflowException e) {
+      throw new CorpusError("Truncated compiled corpus: " + file);
+    } catch (IOException e) {
+      throw new CorpusError(e.getMessage());
+    }
+  }
+
+  /**
+   * Batches of sentences from compiled corpus files, read sequentially from
+   * the mapped files each time the batches are iterated over, so that the
+   * corpus need not fit in memory. The string tables of all of the files are
+   * coded in <code>alpha</code> up front.
+   * 
+   * @param batchSize
+   *          Number of sentences in each batch
+   * @param numSent
+   *          Number of sentences to read, or -1 to read them all
+   * @param filterLen
+   *          If positive, skip sentences longer than this
+   * @param noSeg
+   *          Put the whole of each sentence in one segment
+   */
+  public static Iterable<StopSegmentCorpus> batches(final Alpha alpha,
+      final String[] files, final int batchSize, final int numSent,
+      final int filterLen, final boolean noSeg) throws CorpusError {
+    assert batchSize > 0;
+    final Mapped[] parts = new Mapped[files.length];
+    for (int i = 0; i < files.length; i++)
+      parts[i] = map(alpha, files[i]);
+
+    return new Iterable<StopSegmentCorpus>() {
+      @Override
+      public Iterator<StopSegmentCorpus> iterator() {
+        return new BatchIterator(alpha, parts, batchSize, numSent, filterLen,
+            noSeg);
+      }
+    };
+  }
+
+  private static final class BatchIterator 
+  implements Iterator<StopSegmentCorpus> {
+
+    private final Alpha alpha;
+    private final Mapped[] parts;
+    private final int batchSize, numSent, filterLen;
+    private final boolean noSeg;
+
+    /** Current part, next sentence in it, and sentences read so far */
+    private int p = 0, s = 0, n = 0;
+    private StopSegmentCorpus next;
+
+    BatchIterator(final Alpha _alpha, final Mapped[] _parts,
+        final int _batchSize, final int _numSent, final int _filterLen,
+        final boolean _noSeg) {
+      alpha = _alpha;
+      parts = _parts;
+      batchSize = _batchSize;
+      numSent = _numSent;
+      filterLen = _filterLen;
+      noSeg = _noSeg;
+      next = readBatch();
+    }
+
+    /** @return the next batch, or null if there are no more sentences */
+    private StopSegmentCorpus readBatch() {
+      final StopSegmentCorpus.Builder batch =
+        new StopSegmentCorpus.Builder(alpha);
+      try {
+        while (batch.size() < batchSize && p < parts.length
+            && (numSent < 0 || n < numSent)) {
+          final Mapped m = parts[p];
+          if (s == m.nsent) {
+            p++;
+            s = 0;
+            continue;
+          }
+
+          final int seg0 = m.sentOffsets.get(s), seg1 = m.sentOffsets.get(s + 1);
+          s++;
+          n++;
+          if (seg0 > seg1 || seg1 > m.nseg)
+            throw m.corrupt();
+          if (filterLen > 0 && 
+              m.segOffsets.get(seg1) - m.segOffsets.get(seg0) > filterLen)
+            continue;
+
+          batch.startSentence();
+          if (noSeg)
+            batch.startSegment();
+          for (int seg = seg0; seg < seg1; seg++) {
+            if (!noSeg)
+              batch.startSegment();
+            for (int t = m.segOffsets.get(seg); t < m.segOffsets.get(seg + 1);
+                t++)
+              batch.addToken(m.code(m.tokens.get(t)));
+          }
+        }
+      } catch (CorpusError e) {
+        throw new RuntimeException(e);
+      } catch (IndexOutOfBoundsException e) {
+        throw new RuntimeException(parts[p].corrupt());
+      }
+      return batch.size() == 0 ? null : batch.build();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public StopSegmentCorpus next() {
+      if (next == null)
+        throw new NoSuchElementException();
+      final StopSegmentCorpus batch = next;
+      next = readBatch();
+      return batch;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Read and concatenate compiled corpus files
+   *
+   * @param numSent
+   *          Keep only the first <code>numSent</code> sentences, or all if -1
+   */
+  public static StopSegmentCorpus stopSegmentCorpus(final Alpha alpha,
+      final String[] files, final int numSent, final boolean noSeg)
+      throws CorpusError {
+    final StopSegmentCorpus[] parts = new StopSegmentCorpus[files.length];
+    int nsent = 0;
+    for (int i = 0; i < files.length; i++) {
+      parts[i] = read(alpha, files[i], noSeg);
+      nsent += parts[i].size();
+    }
+    if (parts.length == 1 && (numSent < 0 || numSent >= nsent))
+      return parts[0];
+    if (numSent >= 0 && numSent < nsent)
+      nsent = numSent;
+
+    // sentences, segments and tokens from each part, up to nsent sentences
+    final int[][] counts = new int[parts.length][];
+    int left = nsent, nseg = 0, ntok = 0;
+    for (int p = 0; p < parts.length; p++) {
+      final int n = Math.min(left, parts[p].size());
+      final int segs = parts[p].segmentStart(n);
+      counts[p] = new int[] { n, segs, parts[p].tokenStart(segs) };
+      left -= n;
+      nseg += segs;
+      ntok += counts[p][2];
+    }
+
+    final int[] tokens = new int[ntok];
+    final int[] sentOffsets = new int[nsent + 1];
+    final int[] segOffsets = new int[nseg + 1];
+    int i = 0, j = 0, t = 0;
+    for (int p = 0; p < parts.length; p++) {
+      final StopSegmentCorpus part = parts[p];
+      for (int s = 0; s < counts[p][0]; s++)
+        sentOffsets[i++] = j + part.sentOffsets[s];
+      for (int s = 0; s < counts[p][1]; s++)
+        segOffsets[j++] = t + part.segOffsets[s];
+      System.arraycopy(part.tokens, 0, tokens, t, counts[p][2]);
+      t += counts[p][2];
+    }
+    sentOffsets[i] = j;
+    segOffsets[j] = t;
+    return new StopSegmentCorpus(alpha, tokens, sentOffsets, segOffsets);
+  }
+}
@@ -1,18 +1,37 @@
 package upparse.corpus;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author eponvert@utexas.edu (Elias Ponvert)
  */
 public abstract class CorpusTreeIter implements Iterable<LabeledBracketSet> {
 
+  /** Initial size of the alphabet for the tokens of one file */
+  private static final int FILE_VOCAB = 1 << 12;
+
   private final Iterable<String> strIter;
   private final Alpha alpha;
+  private final int numThreads;
 
   public CorpusTreeIter(final Iterable<String> _strIter, final Alpha _alpha) {
+    this(_strIter, _alpha, 1);
+  }
+
+  /**
+   * @param _numThreads
+   *          Number of threads used to read the files. With more than one,
+   *          files are parsed concurrently, and trees are still returned in
+   *          file order with the same vocabulary codes as a sequential read.
+   */
+  public CorpusTreeIter(final Iterable<String> _strIter, final Alpha _alpha,
+      final int _numThreads) {
+    assert _numThreads > 0;
     alpha = _alpha;
     strIter = _strIter;
+    numThreads = _numThreads;
   }
 
   public Iterable<UnlabeledBracketSet> toUnlabeledIter(
@@ -46,7 +65,10 @@ public abstract class CorpusTreeIter implements Iterable<LabeledBracketSet> {
 
   @Override
   public Iterator<LabeledBracketSet> iterator() {
-    return new Iterator<LabeledBracketSet>() {
+    if (numThreads > 1 && strIter instanceof CorpusTreeStringIter)
+      return new ParallelIterator((CorpusTreeStringIter) strIter);
+
+    return new CloseableIterator<LabeledBracketSet>() {
       
       final Iterator<String> iterator = strIter.iterator();
       
@@ -64,8 +86,122 @@ public abstract class CorpusTreeIter implements Iterable<LabeledBracketSet> {
       public boolean hasNext() {
         return iterator.hasNext();
       }
+
+      @Override
+      public void close() throws IOException {
+        if (iterator instanceof Closeable)
+          ((Closeable) iterator).close();
+      }
     };
   }
 
+  /** Trees parsed from one file, with tokens coded in a file-local alphabet */
+  private static final class FileTrees {
+    final List<LabeledBracketSet> trees = new ArrayList<LabeledBracketSet>();
+    final int[] codes;
+
+    FileTrees(final CorpusTreeStringIter files, final String file) 
+    throws IOException {
+      final Alpha local = new Alpha(FILE_VOCAB);
+      final FileTreeStringIter iter = files.newFileTreeStringIter(file);
+      try {
+        while (iter.hasNext())
+          trees.add(LabeledBracketSet.fromString(iter.next(), local));
+      } finally {
+        iter.close();
+      }
+      codes = new int[local.size()];
+      Arrays.fill(codes, -1);
+    }
+  }
+
+  /**
+   * Parses files concurrently, a few files ahead of the reader, and hands
+   * the trees out in file order. Each file is parsed into its own alphabet,
+   * and tokens are moved into the shared alphabet as their tree is handed
+   * out, so codes are assigned just as in a sequential read.
+   */
+  private final class ParallelIterator 
+  implements CloseableIterator<LabeledBracketSet> {
+
+    private final CorpusTreeStringIter strIter;
+    private final String[] files;
+    private final ExecutorService pool = 
+      Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "corpus-reader");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    private final LinkedList<Future<FileTrees>> pending = 
+      new LinkedList<Future<FileTrees>>();
+    private int nextFile = 0;
+    private FileTrees curr = null;
+    private int currTree = 0;
+
+    ParallelIterator(final CorpusTreeStringIter _strIter) {
+      strIter = _strIter;
+      files = strIter.getFiles();
+      submit();
+    }
+
+    private void submit() {
+      while (nextFile < files.length && pending.size() < 2 * numThreads) {
+        final String file = files[nextFile++];
+        pending.add(pool.submit(new Callable<FileTrees>() {
+          @Override
+          public FileTrees call() throws IOException {
+            return new FileTrees(strIter, file);
+          }
+        }));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (curr == null || currTree == curr.trees.size()) {
+        if (pending.isEmpty()) {
+          pool.shutdown();
+          return false;
+        }
+        try {
+          curr = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+        currTree = 0;
+        submit();
+      }
+      return true;
+    }
+
+    @Override
+    public LabeledBracketSet next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      return curr.trees.get(currTree++).recode(curr.codes, alpha);
+    }
+
+    /** Drop the files not yet handed out, and stop reading ahead */
+    @Override
+    public void close() {
+      for (final Future<FileTrees> f : pending)
+        f.cancel(true);
+      pending.clear();
+      nextFile = files.length;
+      curr = null;
+      pool.shutdown();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
 
 }
@@ -14,10 +14,14 @@ public abstract class CorpusTreeStringIter implements Iterable<String> {
   protected CorpusTreeStringIter(String[] _files) {
     files = _files;
   }
+
+  String[] getFiles() {
+    return files;
+  }
   
   @Override
   public Iterator<String> iterator() {
-    return new Iterator<String>() {
+    return new CloseableIterator<String>() {
       
       int i = 0;
       FileTreeStringIter fileStrIter = null;
@@ -40,6 +44,15 @@ public abstract class CorpusTreeStringIter implements Iterable<String> {
         return fileStrIter.hasNext();
       }
       
+      @Override
+      public void close() throws IOException {
+        i = files.length;
+        if (fileStrIter != null) {
+          fileStrIter.close();
+          fileStrIter = null;
+        }
+      }
+
       private boolean noFiles() {
         return fileStrIter == null && i >= files.length;
       }
@@ -4,5 +4,5 @@ package upparse.corpus;
  * @author eponvert@utexas.edu (Elias Ponvert)
  */
 public enum CorpusType {
-  WSJ, NEGRA, CTB, SPL, WPL;
+  WSJ, NEGRA, CTB, SPL, WPL, BIN;
 }
@@ -15,108 +15,86 @@ public class CorpusUtil {
 
   public static StopSegmentCorpus wsjStopSegmentCorpus(final Alpha alpha,
       final String[] corpusFiles, final int numSent, final boolean noSeg) {
+    return wsjStopSegmentCorpus(alpha, corpusFiles, numSent, -1, noSeg, 1);
+  }
+
+  /**
+   * Reading stops after <code>numSent</code> trees. When sentences are
+   * limited or filtered, trees are parsed into a scratch alphabet, so only
+   * the sentences kept add to <code>alpha</code> (see
+   * {@link #treeAlpha(Alpha, int, int)}). Likewise for Negra and CTB.
+   */
+  public static StopSegmentCorpus wsjStopSegmentCorpus(final Alpha alpha,
+      final String[] corpusFiles, final int numSent, final int filterLen,
+      final boolean noSeg, final int numThreads) {
     final Iterable<LabeledBracketSet> treeiter = WSJCorpusTreeIter.fromFiles(
-        corpusFiles, alpha);
+        corpusFiles, treeAlpha(alpha, numSent, filterLen), numThreads);
     return treeIterStopSegmentCorpus(alpha, treeiter, KeepStop.wsjKeepStop,
-        numSent, noSeg);
+        numSent, filterLen, noSeg);
   }
 
   public static StopSegmentCorpus negraStopSegmentCorpus(final Alpha alpha,
       final String[] corpusFiles, final int numSent, final boolean noSeg) {
+    return negraStopSegmentCorpus(alpha, corpusFiles, numSent, -1, noSeg, 1);
+  }
+
+  public static StopSegmentCorpus negraStopSegmentCorpus(final Alpha alpha,
+      final String[] corpusFiles, final int numSent, final int filterLen,
+      final boolean noSeg, final int numThreads) {
     final Iterable<LabeledBracketSet> treeiter = NegraCorpusTreeIter.fromFiles(
-        corpusFiles, alpha);
+        corpusFiles, treeAlpha(alpha, numSent, filterLen), numThreads);
     return treeIterStopSegmentCorpus(alpha, treeiter, KeepStop.negraKeepStop,
-        numSent, noSeg);
+        numSent, filterLen, noSeg);
   }
 
   public static StopSegmentCorpus ctbStopSegmentCorpus(final Alpha alpha,
       final String[] corpusFiles, final int numSent, final boolean noSeg) {
-    final Iterable<LabeledBracketSet> treeiter = CTBCorpusTreeIter.fromFiles(
-        corpusFiles, alpha);
-    return treeIterStopSegmentCorpus(alpha, treeiter, KeepStop.ctbKeepStop,
-        numSent, noSeg);
+    return ctbStopSegmentCorpus(alpha, corpusFiles, numSent, -1, noSeg, 1);
   }
 
-  private static int[] list2array(final List<Integer> segment) {
-    final int[] segArray = new int[segment.size()];
-    for (int i = 0; i < segArray.length; i++)
-      segArray[i] = segment.get(i);
-    return segArray;
+  public static StopSegmentCorpus ctbStopSegmentCorpus(final Alpha alpha,
+      final String[] corpusFiles, final int numSent, final int filterLen,
+      final boolean noSeg, final int numThreads) {
+    final Iterable<LabeledBracketSet> treeiter = CTBCorpusTreeIter.fromFiles(
+        corpusFiles, treeAlpha(alpha, numSent, filterLen), numThreads);
+    return treeIterStopSegmentCorpus(alpha, treeiter, KeepStop.ctbKeepStop,
+        numSent, filterLen, noSeg);
   }
 
-  private static int[][] lists2array(List<int[]> segments) {
-    final int[][] array = new int[segments.size()][];
-    for (int i = 0; i < segments.size(); i++)
-      array[i] = segments.get(i);
-    return array;
+  /**
+   * @return the alphabet to parse trees into. With no limit on the number or
+   *         length of sentences every tree is kept, so this is
+   *         <code>alpha</code> itself, which then codes every label, token
+   *         and trace in the treebank in the order read, just as it always
+   *         has. Otherwise it is a scratch alphabet, and the vocabulary, and
+   *         with it emission smoothing, covers only the sentences kept.
+   */
+  private static Alpha treeAlpha(final Alpha alpha, final int numSent,
+      final int filterLen) {
+    return numSent < 0 && filterLen <= 0 ? alpha : new Alpha();
   }
 
+  /**
+   * Read sentence-per-line files
+   * 
+   * @param numSent
+   *          Number of lines to read, or -1 to read them all
+   */
   public static StopSegmentCorpus splStopSegmentCorpus(final Alpha alpha,
       final String[] corpusStr, final int numSent, final boolean noSeg)
   throws CorpusError {
-
-    // count the number of sentences:
-    int s = 0;
+    final SentencePerLineReader reader =
+      new SentencePerLineReader(alpha, numSent, noSeg);
     for (final String file : corpusStr) {
-
-      BufferedReader br;
-      try {
-        br = new BufferedReader(
-            new InputStreamReader(new FileInputStream(file), "UTF8"));
-        try {
-          while (br.readLine() != null)
-            s++;
-        } catch (final IOException e) {
-          throw new CorpusError(e.getMessage());
-        } finally {
-          br.close();
-        }
-      } catch (final IOException e1) {
-        throw new CorpusError(e1.getMessage());
-      }
-    }
-    final int[][][] corpus = new int[s][][];
-
-    s = 0;
-    for (final String file : corpusStr) {
-      BufferedReader br;
+      if (reader.done())
+        break;
       try {
-        br = new BufferedReader(
-            new InputStreamReader(new FileInputStream(file), "UTF8"));
-        String line;
-        try {
-          while ((line = br.readLine()) != null) {
-            if (line.trim().equals("")) {
-              corpus[s++] = new int[0][];
-            } else {
-              final List<int[]> segments = new ArrayList<int[]>();
-              List<Integer> segment = new ArrayList<Integer>();
-              for (final String word : line.split(" ")) {
-                if (KeepStop.isStoppingPunc(word) && !noSeg
-                    && !segment.isEmpty()) {
-                  segments.add(list2array(segment));
-                  segment = new ArrayList<Integer>();
-                } else {
-                  segment.add(alpha.getCode(word));
-                }
-              }
-              if (!segment.isEmpty())
-                segments.add(list2array(segment));
-
-              corpus[s++] = lists2array(segments);
-            }
-          }
-        } catch (final IOException e) {
-          throw new CorpusError(e.getMessage());
-        } finally {
-          br.close();
-        }
-      } catch (final IOException e1) {
-        throw new CorpusError(e1.getMessage());
+        reader.read(file);
+      } catch (final IOException e) {
+        throw new CorpusError(e.getMessage());
       }
-
     }
-    return StopSegmentCorpus.fromArrays(alpha, corpus);
+    return reader.corpus();
   }
 
   public static StopSegmentCorpus wplStopSegmentCorpus(final Alpha alpha,
@@ -128,59 +106,66 @@ public class CorpusUtil {
   public static StopSegmentCorpus treeIterStopSegmentCorpus(final Alpha alpha,
       final Iterable<LabeledBracketSet> treeiter, final CorpusConstraints cc,
       final int numS, final boolean noSeg) {
-    final LabeledBracketSet[] lbs = lbsArrayFromIter(treeiter);
-    final int len;
-    if (numS == -1 || numS > lbs.length)
-      len = lbs.length;
-    else
-      len = numS;
-    final int[][][] corpus = new int[len][][];
-    int i = 0;
-
-    if (len > 0) {
-      for (final LabeledBracketSet s : lbs) {
-        final String str = s.tokenString(cc);
-        final String[] segments = str.split(KeepStop.STOP);
-        int m = 0;
-        for (final String seg : segments)
-          if (seg.trim().length() > 0)
-            m++;
-        corpus[i] = new int[m][];
-        int j = 0;
-        for (final String seg : segments) {
-          if (seg.trim().length() > 0) {
-            final String[] tokens = seg.trim().split(" +");
-            corpus[i][j] = new int[tokens.length];
-            for (int k = 0; k < tokens.length; k++)
-              corpus[i][j][k] = alpha.getCode(tokens[k]);
-            j++;
-          }
-        }
+    return treeIterStopSegmentCorpus(alpha, treeiter, cc, numS, -1, noSeg);
+  }
 
-        if (noSeg) {
-          final int l = sentLen(corpus[i]);
-          final int[][] newsent = new int[1][l];
-          int x = 0;
-          for (final int[] seg : corpus[i])
-            for (final int w : seg)
-              newsent[0][x++] = w;
-          corpus[i] = newsent;
+  /**
+   * Build a stop-segment corpus from trees, reading no more trees than needed.
+   * Only the tokens of sentences that are kept are coded in
+   * <code>alpha</code>, which need not be the trees' own alphabet.
+   * 
+   * @param numS
+   *          Number of trees to read, or -1 to read them all
+   * @param filterLen
+   *          If positive, keep only sentences of at most this many tokens
+   */
+  public static StopSegmentCorpus treeIterStopSegmentCorpus(final Alpha alpha,
+      final Iterable<LabeledBracketSet> treeiter, final CorpusConstraints cc,
+      final int numS, final int filterLen, final boolean noSeg) {
+    final StopSegmentCorpus.Builder corpus = 
+      new StopSegmentCorpus.Builder(alpha);
+    final List<String[]> segments = new ArrayList<String[]>();
+    final Iterator<LabeledBracketSet> iter = treeiter.iterator();
+    int n = 0;
+
+    while ((numS < 0 || n < numS) && iter.hasNext()) {
+      final String str = iter.next().tokenString(cc);
+      n++;
+
+      segments.clear();
+      int len = 0;
+      for (final String seg : str.split(KeepStop.STOP)) {
+        if (seg.trim().length() > 0) {
+          final String[] tokens = seg.trim().split(" +");
+          segments.add(tokens);
+          len += tokens.length;
         }
+      }
 
-        i++;
-        if (i >= len)
-          break;
+      if (filterLen > 0 && len > filterLen)
+        continue;
+
+      corpus.startSentence();
+      if (noSeg)
+        corpus.startSegment();
+      for (final String[] tokens : segments) {
+        if (!noSeg)
+          corpus.startSegment();
+        for (final String token : tokens)
+          corpus.addToken(alpha.getCode(token));
       }
     }
 
-    return StopSegmentCorpus.fromArrays(alpha, corpus);
-  }
+    // Stopping at numS leaves the current file open
+    if (iter instanceof Closeable) {
+      try {
+        ((Closeable) iter).close();
+      } catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
 
-  private static int sentLen(final int[][] sent) {
-    int s = 0;
-    for (final int[] sg : sent)
-      s += sg.length;
-    return s;
+    return corpus.build();
   }
 
   public static UnlabeledBracketSetCorpus wsjUnlabeledBracketSetCorpus(
@@ -282,7 +267,7 @@ public class CorpusUtil {
             CTBCorpusStandard.instance));
   }
 
-  private static ChunkedCorpus getChunkedCorpusNPs(final Alpha alpha,
+  static ChunkedCorpus getChunkedCorpusNPs(final Alpha alpha,
       final Iterable<LabeledBracketSet> iter, final String cat,
       final CorpusConstraints cc) {
     final LabeledBracketSet[] lBraks = lbsArrayFromIter(iter);
@@ -365,22 +350,32 @@ public class CorpusUtil {
       final String[] corpusStr, final CorpusType fileType, final int numSent,
       final int filterByLength, final boolean noSeg,
       boolean reverse) throws CorpusError {
+    return stopSegmentCorpus(alpha, corpusStr, fileType, numSent,
+        filterByLength, noSeg, reverse, 1);
+  }
+
+  /** @param numThreads Number of threads used to read treebank files */
+  public static StopSegmentCorpus stopSegmentCorpus(final Alpha alpha,
+      final String[] corpusStr, final CorpusType fileType, final int numSent,
+      final int filterByLength, final boolean noSeg, final boolean reverse,
+      final int numThreads) throws CorpusError {
     StopSegmentCorpus corpus;
     switch (fileType) {
+      // the treebank readers filter by length as they go
       case WSJ:
-        corpus = CorpusUtil.wsjStopSegmentCorpus(alpha, corpusStr, numSent,
-            noSeg);
-        break;
+        return filterAndReverse(CorpusUtil.wsjStopSegmentCorpus(alpha, 
+            corpusStr, numSent, filterByLength, noSeg, numThreads), -1,
+            reverse);
 
       case NEGRA:
-        corpus = CorpusUtil.negraStopSegmentCorpus(alpha, corpusStr, numSent,
-            noSeg);
-        break;
+        return filterAndReverse(CorpusUtil.negraStopSegmentCorpus(alpha,
+            corpusStr, numSent, filterByLength, noSeg, numThreads), -1,
+            reverse);
 
       case CTB:
-        corpus = CorpusUtil.ctbStopSegmentCorpus(alpha, corpusStr, numSent,
-            noSeg);
-        break;
+        return filterAndReverse(CorpusUtil.ctbStopSegmentCorpus(alpha,
+            corpusStr, numSent, filterByLength, noSeg, numThreads), -1,
+            reverse);
 
       case SPL:
         corpus = CorpusUtil.splStopSegmentCorpus(alpha, corpusStr, numSent,
@@ -391,10 +386,29 @@ public class CorpusUtil {
         corpus = CorpusUtil.wplStopSegmentCorpus(alpha, corpusStr, numSent);
         break;
 
+      case BIN:
+        corpus = CompiledCorpus.stopSegmentCorpus(alpha, corpusStr, numSent,
+            noSeg);
+        break;
+
       default:
         throw new CorpusError("Unexpected file-type: " + fileType);
     }
 
+    return filterAndReverse(corpus, filterByLength, reverse);
+  }
+
+  /** Stop-segment corpus from an already parsed treebank */
+  public static StopSegmentCorpus stopSegmentCorpus(final Treebank treebank,
+      final int numSent, final int filterByLength, final boolean noSeg,
+      final boolean reverse) {
+    return filterAndReverse(
+        treebank.stopSegmentCorpus(numSent, filterByLength, noSeg), -1,
+        reverse);
+  }
+
+  private static StopSegmentCorpus filterAndReverse(StopSegmentCorpus corpus,
+      final int filterByLength, final boolean reverse) {
     if (filterByLength > 0)
       corpus = corpus.filterLen(filterByLength);
     
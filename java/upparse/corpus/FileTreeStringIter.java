@@ -1,68 +1,80 @@
 package upparse.corpus;
 
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
 
 /**
+ * Iterator over the tree strings in a treebank file. The file is read once,
+ * as a stream, holding only the tree being assembled and the line that starts
+ * the next one. Bytes that are not valid UTF-8 are replaced rather than
+ * rejected. The file is closed at the end, or by {@link #close()} if
+ * iteration stops early.
+ *
  * @author eponvert@utexas.edu (Elias Ponvert)
  */
-public abstract class FileTreeStringIter implements Iterator<String> {
+public abstract class FileTreeStringIter 
+  implements Iterator<String>, Closeable {
 
-  private int n = 0;
-  private String[] lines;
-  
-  protected final String getLine() {
-    return lines[n];
-  }
-  
-  protected final void incLine() {
-    n++;
+  private final BufferedReader br;
+
+  /** The line starting the next tree, or null at the end of the file */
+  private String nextStart = null;
+  private boolean started = false;
+
+  public FileTreeStringIter(final String file) throws IOException {
+    final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    br = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), decoder), 1 << 16);
   }
-  
-  protected final boolean hasAnotherLine() {
-    return n < lines.length;
+
+  /** A tree starts on a line beginning with an open paren */
+  private boolean isTreeStart(final String line) {
+    return line.length() != 0 && line.charAt(0) == '(' && !skipLine(line);
   }
-  
-  public FileTreeStringIter() { } 
-  
-  public FileTreeStringIter(final String file) throws IOException { 
-    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
-    int n = 0;
-    while (br.readLine() != null) n++;
-    br.close();
-    br =  new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
-    init(br, n);
+
+  /** Read up to the next line that starts a tree, appending the lines
+   * in between to <code>sb</code> if it is not null */
+  private void readToTreeStart(final StringBuilder sb) {
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (isTreeStart(line)) {
+          nextStart = line;
+          return;
+        }
+        if (sb != null && !skipLine(line))
+          sb.append(line);
+      }
+      nextStart = null;
+      br.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
-//    BufferedReader br = new BufferedReader(new FileReader(file));
-//    int numLines = 0;
-//    while (br.readLine() != null) numLines++;
-//    br = new BufferedReader(new FileReader(file));
-//    init(br, numLines);
-//  }
-  
-  public void init(final BufferedReader br, final int numLines) throws IOException {
-    lines = new String[numLines];
-    int i = 0;
-    String line;
-    while ((line = br.readLine()) != null) lines[i++] = line;
-    updateN();
+
+  private void start() {
+    if (!started) {
+      started = true;
+      readToTreeStart(null);
+    }
   }
 
   @Override
   public boolean hasNext() {
-    updateN();
-    return n < lines.length;
+    start();
+    return nextStart != null;
   }
 
   @Override
   public String next() {
-    int prev = n;
-    n++;
-    updateN();
-    StringBuffer sb = new StringBuffer();
-    for (int i = prev; i < n; i++)
-      if (!skipLine(lines[i]))
-        sb.append(lines[i]);
+    start();
+    if (nextStart == null)
+      throw new NoSuchElementException();
+    final StringBuilder sb = new StringBuilder(nextStart);
+    readToTreeStart(sb);
     return sb.toString();
   }
 
@@ -70,14 +82,14 @@ public abstract class FileTreeStringIter implements Iterator<String> {
   public void remove() {
     throw new UnsupportedOperationException();
   }
-  
-  protected abstract boolean skipLine(String line);
 
-  protected void updateN() {
-    while (hasAnotherLine() && 
-           (getLine().length() == 0 || getLine().charAt(0) != '(' || 
-            skipLine(getLine())))
-      incLine();
-          
+  /** Close the file, after which there are no more trees */
+  @Override
+  public void close() throws IOException {
+    started = true;
+    nextStart = null;
+    br.close();
   }
+
+  protected abstract boolean skipLine(String line);
 }
@@ -1,5 +1,7 @@
 package upparse.corpus;
 
+import java.util.*;
+
 /**
  * @author eponvert@utexas.edu (Elias Ponvert)
  */
@@ -24,13 +26,13 @@ public class KeepStop implements CorpusConstraints {
       "\u3002", "\u3001", "\uFF0C" }; // Chinese ideographic stop, ideographic
                                       // comma, fullwidth comma
 
+  private static final Set<String> STOPPING_PUNC_SET = new HashSet<String>(
+      Arrays.asList(STOPPING_PUNC));
+
   public static final String STOP = "__stop__";
 
   public static boolean isStoppingPunc(final String w) {
-    for (String p : STOPPING_PUNC)
-      if (p.equals(w))
-        return true;
-    return false;
+    return STOPPING_PUNC_SET.contains(w);
   }
 
   @Override
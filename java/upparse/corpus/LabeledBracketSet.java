@@ -48,6 +48,22 @@ public class LabeledBracketSet {
         pos[b.getFirst()] = b.getLabel();
 }
   
+  /**
+   * @param codes
+   *          Code in <code>_alpha</code> of each token code in this set's
+   *          vocabulary, or -1 if not yet known; filled in as needed
+   * @return the same tree with its tokens coded in <code>_alpha</code>
+   */
+  LabeledBracketSet recode(final int[] codes, final Alpha _alpha) {
+    final int[] tokensI = new int[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      if (codes[tokens[i]] == -1)
+        codes[tokens[i]] = _alpha.getCode(alpha.getString(tokens[i]));
+      tokensI[i] = codes[tokens[i]];
+    }
+    return new LabeledBracketSet(tokensI, brackets, _alpha);
+  }
+
   public int[] getTokens() {
     return tokens;
   }
@@ -99,54 +115,72 @@ public class LabeledBracketSet {
     return UnlabeledBracketSet.fromString(asString, alpha);
   }
   
+  /**
+   * Parse a Penn-style tree string in one pass. An open paren starts a
+   * bracket whose label runs up to the next space, tab or close paren, so an
+   * open paren inside a label (as in <code>$(</code>) is part of the label.
+   * Any other run of characters up to a space, tab or close paren is a
+   * token.
+   */
   public static LabeledBracketSet fromString(
-      String next, final Alpha alpha) {
-    next = next.replaceAll("\\(\\(", "( (").replaceAll("\\)", " ) ");
-    next = next.replaceAll("(\\([a-zA-Z]* [a-zA-Z]*) ([a-zA-Z]* \\))", "\\1_\\2");
-    if (next.matches(".*\\([a-zA-Z]* [a-zA-Z]* [a-zA-Z]* \\).*"))
-      throw new RuntimeException("Got it");
-    if (next.matches("Ken Madsen"))
-      throw new RuntimeException("Got it by cheating");
-    if (next.contains("Ken Madsen"))
-      throw new RuntimeException("Got it by cheating");
-    if (next.contains("Ken_Madsen"))
-      throw new RuntimeException("woot");
-    if (next.contains("Madsen"))
-      throw new RuntimeException("hmm");
-    if (next.contains("\\1"))
-      throw new RuntimeException("woops");
-    String[] items = next.split("[ \\t]+");
-    return fromTokens(items, alpha);
-  }
+      final String next, final Alpha alpha) {
+    final List<LabeledBracket> brackets = new ArrayList<LabeledBracket>();
+    int[] tokensI = new int[32], firstIndices = new int[16];
+    String[] labels = new String[16];
+    int n = 0, depth = 0, i = 0, start;
+    final int len = next.length();
+
+    while (i < len) {
+      final char c = next.charAt(i);
+      if (c == ' ' || c == '\t')
+        i++;
+
+      else if (c == ')') {
+        assert depth > 0 : "unmatched close bracket in " + next;
+        depth--;
+        brackets.add(new LabeledBracket(firstIndices[depth], n, labels[depth]));
+        i++;
+
+      } else if (c == '(') {
+        // a paren directly following an open paren opens another bracket,
+        // leaving the first unlabeled
+        do {
+          if (depth == labels.length) {
+            labels = Arrays.copyOf(labels, 2 * depth);
+            firstIndices = Arrays.copyOf(firstIndices, 2 * depth);
+          }
+          firstIndices[depth] = n;
+          labels[depth++] = "";
+          i++;
+        } while (i < len && next.charAt(i) == '(');
+
+        start = i;
+        i = endOfItem(next, i);
+        labels[depth - 1] = next.substring(start, i);
 
-  public static LabeledBracketSet fromTokens(String[] items, Alpha alpha) {
-    List<String> tokens = new ArrayList<String>();
-    Stack<Integer> firstIndices = new Stack<Integer>();
-    Stack<String> labels = new Stack<String>();
-    List<LabeledBracket> brackets = new ArrayList<LabeledBracket>();
-    
-    int n = 0;
-    
-    for (int i = 0; i < items.length; i++) {
-      if (items[i].charAt(0) == '(') {
-        labels.push(items[i].substring(1));
-        firstIndices.push(n);
-      
-      } else if (items[i].charAt(0) == ')') {
-        assert items[i].length() == 1: "closing bracket is " + items[i];
-        assert labels.size() == firstIndices.size();
-        assert firstIndices.size() > 0;
-        brackets.add(new LabeledBracket(firstIndices.pop(), n, labels.pop()));
-        
       } else {
-        tokens.add(items[i]);
-        n++;
+        start = i;
+        i = endOfItem(next, i);
+        if (n == tokensI.length)
+          tokensI = Arrays.copyOf(tokensI, 2 * n);
+        tokensI[n++] = alpha.getCode(next.substring(start, i));
       }
     }
-    int[] tokensI = new int[tokens.size()];
-    for (int i = 0; i < tokensI.length; i++)
-      tokensI[i] = alpha.getCode(tokens.get(i));
-    return new LabeledBracketSet(tokensI, brackets, alpha);
+
+    return new LabeledBracketSet(Arrays.copyOf(tokensI, n), brackets, alpha);
+  }
+
+  /** @return the index of the first space, tab or close paren at or after
+   * <code>i</code> */
+  private static int endOfItem(final String s, int i) {
+    final int len = s.length();
+    while (i < len) {
+      final char c = s.charAt(i);
+      if (c == ' ' || c == '\t' || c == ')')
+        break;
+      i++;
+    }
+    return i;
   }
 
   public int[][] lowestChunksOfType(
@@ -6,14 +6,19 @@ package upparse.corpus;
  */
 public class NegraCorpusTreeIter extends CorpusTreeIter {
 
-  private NegraCorpusTreeIter(
-      final NegraCorpusTreeStringIter strIter, final Alpha _alpha) {
-    super(strIter, _alpha);
+  private NegraCorpusTreeIter(final NegraCorpusTreeStringIter strIter,
+      final Alpha _alpha, final int numThreads) {
+    super(strIter, _alpha, numThreads);
   }
 
   public static NegraCorpusTreeIter fromFiles(
       final String[] files, final Alpha alpha) {
+    return fromFiles(files, alpha, 1);
+  }
+
+  public static NegraCorpusTreeIter fromFiles(
+      final String[] files, final Alpha alpha, final int numThreads) {
     return new NegraCorpusTreeIter(
-        NegraCorpusTreeStringIter.fromFiles(files), alpha);
+        NegraCorpusTreeStringIter.fromFiles(files), alpha, numThreads);
   }
 }
@@ -0,0 +1,160 @@
+package upparse.corpus;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/**
+ * Reads sentence-per-line text into a stop-segment corpus in a single pass.
+ * Each file is memory mapped a window at a time and decoded straight into
+ * tokens, which are coded and appended to the corpus as they are found.
+ * Tokens are separated by whitespace, and stopping punctuation ends a
+ * segment unless it is the first token of one.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+final class SentencePerLineReader {
+
+  /** Bytes mapped at a time */
+  private static int window = 1 << 26;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Alpha alpha;
+  private final int numSent;
+  private final boolean noSeg;
+  private final StopSegmentCorpus.Builder corpus;
+
+  private final StringBuilder token = new StringBuilder();
+  private int lines = 0;
+
+  /** Whether the current line has any characters yet */
+  private boolean inLine = false;
+
+  /** Whether the current segment has any tokens yet */
+  private boolean inSegment = false;
+
+  private boolean lastCR = false;
+
+  /**
+   * @param _numSent
+   *          Number of lines to read, or -1 to read them all
+   * @param _noSeg
+   *          Put the whole of each line in one segment
+   */
+  SentencePerLineReader(final Alpha _alpha, final int _numSent,
+      final boolean _noSeg) {
+    alpha = _alpha;
+    numSent = _numSent;
+    noSeg = _noSeg;
+    corpus = new StopSegmentCorpus.Builder(alpha);
+  }
+
+  /**
+   * Set the number of bytes mapped at a time, which must be enough for any
+   * one character. Small windows let tests put a window edge anywhere.
+   */
+  static void setWindow(final int n) {
+    assert n >= 4;
+    window = n;
+  }
+
+  /** @return whether <code>numSent</code> lines have been read */
+  boolean done() {
+    return numSent >= 0 && lines >= numSent;
+  }
+
+  /** Read the lines of <code>file</code>, up to <code>numSent</code> in all */
+  void read(final String file) throws IOException {
+    final CharsetDecoder decoder = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final CharBuffer chars = CharBuffer.allocate(1 << 16);
+    final FileChannel channel = new FileInputStream(file).getChannel();
+    try {
+      final long size = channel.size();
+      long pos = 0;
+      boolean last = false;
+      while (!last && !done()) {
+        final long len = Math.min(window, size - pos);
+        final ByteBuffer bytes =
+          channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        last = pos + len == size;
+        CoderResult result;
+        do {
+          result = decoder.decode(bytes, chars, last);
+          scan(chars);
+        } while (result.isOverflow() && !done());
+
+        // a character split by the window edge is decoded from the next one
+        pos += bytes.position();
+      }
+
+      if (!done()) {
+        while (decoder.flush(chars).isOverflow())
+          scan(chars);
+        scan(chars);
+        if (inLine)
+          endLine();
+      }
+    } finally {
+      channel.close();
+    }
+    inLine = inSegment = lastCR = false;
+  }
+
+  StopSegmentCorpus corpus() {
+    return corpus.build();
+  }
+
+  private void scan(final CharBuffer chars) {
+    chars.flip();
+    while (chars.hasRemaining() && !done()) {
+      final char c = chars.get();
+      if (c == '\n' || c == '\r') {
+        // \r\n ends just one line
+        if (c == '\r' || !lastCR)
+          endLine();
+        lastCR = c == '\r';
+      } else {
+        lastCR = false;
+        if (!inLine) {
+          corpus.startSentence();
+          inLine = true;
+          inSegment = false;
+        }
+        if (c <= ' ')
+          endToken();
+        else
+          token.append(c);
+      }
+    }
+    chars.clear();
+  }
+
+  private void endLine() {
+    if (!inLine)
+      // blank line, an empty sentence
+      corpus.startSentence();
+    endToken();
+    inLine = false;
+    lines++;
+  }
+
+  private void endToken() {
+    if (token.length() == 0)
+      return;
+    final String w = token.toString();
+    token.setLength(0);
+    if (inSegment && !noSeg && KeepStop.isStoppingPunc(w))
+      inSegment = false;
+    else {
+      if (!inSegment) {
+        corpus.startSegment();
+        inSegment = true;
+      }
+      corpus.addToken(alpha.getCode(w));
+    }
+  }
+}
@@ -57,20 +57,22 @@ public class SimpleBILOEncoder extends TagEncoder {
   @Override
   public int[] bioTrain(ChunkedSegmentedCorpus corpus, int n)
       throws EncoderError {
-    int[][][][] clumpedCorpus = corpus.getArrays();
     int[] train = new int[n];
-    int i = 0, j;
+    int i = 0, j, len;
     train[i++] = STOP_STATE;
 
-    for (int[][][] s : clumpedCorpus) {
-      if (s.length != 0) {
-        for (int[][] seg : s) {
-          for (int[] clump : seg) {
-            if (clump.length == 1)
+    for (int s = 0; s < corpus.nSentences(); s++) {
+      if (corpus.segmentEnd(s) != corpus.segmentStart(s)) {
+        for (int seg = corpus.segmentStart(s); seg < corpus.segmentEnd(s); 
+            seg++) {
+          for (int clump = corpus.chunkStart(seg); clump < corpus.chunkEnd(seg);
+              clump++) {
+            len = corpus.tokenEnd(clump) - corpus.tokenStart(clump);
+            if (len == 1)
               train[i++] = O_STATE;
             else {
               train[i++] = B_STATE;
-              for (j = 1; j < clump.length - 1; j++)
+              for (j = 1; j < len - 1; j++)
                 train[i++] = I_STATE;
               train[i++] = L_STATE;
             }
@@ -6,63 +6,188 @@ import java.util.*;
 import upparse.util.*;
 
 /**
- * Simple data structure for corpus with sentences split by phrasal punctuation
- * 
+ * Simple data structure for corpus with sentences split by phrasal punctuation.
+ * Tokens are stored in one flat array, with offset arrays marking where each
+ * sentence and segment begins.
+ *
  * @author eponvert@utexas.edu (Elias Ponvert)
  */
 public class StopSegmentCorpus {
 
-  int[][][] corpus;
+  /** Codes of all tokens, sentence after sentence */
+  int[] tokens;
+
+  /** Sentence i is segments sentOffsets[i] up to sentOffsets[i+1] */
+  int[] sentOffsets;
+
+  /** Segment j is tokens segOffsets[j] up to segOffsets[j+1] */
+  int[] segOffsets;
+
   private final Alpha alpha;
 
-  private StopSegmentCorpus(final Alpha _alpha, final int[][][] _corpus) {
+  StopSegmentCorpus(final Alpha _alpha, final int[] _tokens,
+      final int[] _sentOffsets, final int[] _segOffsets) {
     alpha = _alpha;
-    corpus = _corpus;
+    tokens = _tokens;
+    sentOffsets = _sentOffsets;
+    segOffsets = _segOffsets;
+  }
+
+  /**
+   * Builds a corpus one token at a time, directly into the flat arrays
+   */
+  static final class Builder {
+
+    private final Alpha alpha;
+    private int[] tokens = new int[1 << 12];
+    private int[] sentOffsets = new int[1 << 8];
+    private int[] segOffsets = new int[1 << 9];
+    private int ntok = 0, nseg = 0, nsent = 0;
+
+    Builder(final Alpha _alpha) {
+      alpha = _alpha;
+    }
+
+    void addToken(final int w) {
+      if (ntok == tokens.length)
+        tokens = Arrays.copyOf(tokens, 2 * ntok);
+      tokens[ntok++] = w;
+    }
+
+    /** Start a segment; its tokens are those added until the next one */
+    void startSegment() {
+      if (nseg + 1 >= segOffsets.length)
+        segOffsets = Arrays.copyOf(segOffsets, 2 * segOffsets.length);
+      segOffsets[nseg++] = ntok;
+    }
+
+    /** Start a sentence; its segments are those started until the next one */
+    void startSentence() {
+      if (nsent + 1 >= sentOffsets.length)
+        sentOffsets = Arrays.copyOf(sentOffsets, 2 * sentOffsets.length);
+      sentOffsets[nsent++] = nseg;
+    }
+
+    /** @return the number of sentences started */
+    int size() {
+      return nsent;
+    }
+
+    StopSegmentCorpus build() {
+      sentOffsets[nsent] = nseg;
+      segOffsets[nseg] = ntok;
+      return new StopSegmentCorpus(alpha, Arrays.copyOf(tokens, ntok),
+          Arrays.copyOf(sentOffsets, nsent + 1),
+          Arrays.copyOf(segOffsets, nseg + 1));
+    }
   }
 
   public static StopSegmentCorpus fromArrays(final Alpha alpha,
       final int[][][] corpus) {
-    return new StopSegmentCorpus(alpha, corpus);
-  }
+    int nseg = 0, ntok = 0;
+    for (final int[][] sent : corpus) {
+      nseg += sent.length;
+      for (final int[] seg : sent)
+        ntok += seg.length;
+    }
 
-  public ChunkedSegmentedCorpus toBaseChunkedSegmentedCorpus(Alpha alpha) {
-    int[][][][] arrays = new int[corpus.length][][][];
-    for (int i = 0; i < corpus.length; i++) {
-      arrays[i] = new int[corpus[i].length][][];
-      for (int j = 0; j < corpus[i].length; j++) {
-        arrays[i][j] = new int[corpus[i][j].length][];
-        for (int k = 0; k < corpus[i][j].length; k++) {
-          arrays[i][j][k] = new int[] { corpus[i][j][k] };
-        }
+    final int[] tokens = new int[ntok];
+    final int[] sentOffsets = new int[corpus.length + 1];
+    final int[] segOffsets = new int[nseg + 1];
+    int i = 0, j = 0, t = 0;
+    for (final int[][] sent : corpus) {
+      sentOffsets[i++] = j;
+      for (final int[] seg : sent) {
+        segOffsets[j++] = t;
+        System.arraycopy(seg, 0, tokens, t, seg.length);
+        t += seg.length;
       }
     }
+    sentOffsets[i] = j;
+    segOffsets[j] = t;
+    return new StopSegmentCorpus(alpha, tokens, sentOffsets, segOffsets);
+  }
+
+  /** First segment of sentence <code>sent</code> */
+  public int segmentStart(final int sent) {
+    return sentOffsets[sent];
+  }
+
+  /** End (exclusive) of the segments of sentence <code>sent</code> */
+  public int segmentEnd(final int sent) {
+    return sentOffsets[sent + 1];
+  }
 
-    return ChunkedSegmentedCorpus.fromArrays(arrays, alpha);
+  /** First token of segment <code>seg</code> */
+  public int tokenStart(final int seg) {
+    return segOffsets[seg];
+  }
+
+  /** End (exclusive) of the tokens of segment <code>seg</code> */
+  public int tokenEnd(final int seg) {
+    return segOffsets[seg + 1];
+  }
+
+  public int token(final int t) {
+    return tokens[t];
+  }
+
+  public int numTokens() {
+    return tokens.length;
+  }
+
+  public int sentenceLength(final int sent) {
+    return segOffsets[sentOffsets[sent + 1]] - segOffsets[sentOffsets[sent]];
+  }
+
+  public ChunkedSegmentedCorpus toBaseChunkedSegmentedCorpus(Alpha alpha) {
+    // every token is a chunk of its own
+    final int[] chunkOffsets = new int[tokens.length + 1];
+    for (int i = 0; i < chunkOffsets.length; i++)
+      chunkOffsets[i] = i;
+    return new ChunkedSegmentedCorpus(tokens, sentOffsets, segOffsets,
+        chunkOffsets, alpha);
   }
 
   /** Create a sub-corpus of setences whose length is lte to num */
   public StopSegmentCorpus filterLen(final int num) {
-    boolean[] filt = new boolean[corpus.length];
-    int i = 0;
-    int n = 0;
-    for (int[][] s : corpus) {
-      int len = 0;
-      for (int[] seg : s)
-        len += seg.length;
-      if (len <= num) {
-        n++;
-        filt[i] = true;
+    int nsent = 0, nseg = 0, ntok = 0;
+    for (int i = 0; i < size(); i++)
+      if (sentenceLength(i) <= num) {
+        nsent++;
+        nseg += segmentEnd(i) - segmentStart(i);
+        ntok += sentenceLength(i);
+      }
+
+    final int[] _tokens = new int[ntok];
+    final int[] _sentOffsets = new int[nsent + 1];
+    final int[] _segOffsets = new int[nseg + 1];
+    int s = 0, j = 0, t = 0;
+    for (int i = 0; i < size(); i++) {
+      if (sentenceLength(i) <= num) {
+        _sentOffsets[s++] = j;
+        final int t0 = segOffsets[segmentStart(i)];
+        for (int seg = segmentStart(i); seg < segmentEnd(i); seg++)
+          _segOffsets[j++] = t + segOffsets[seg] - t0;
+        System.arraycopy(tokens, t0, _tokens, t, sentenceLength(i));
+        t += sentenceLength(i);
       }
-      i++;
     }
+    _sentOffsets[s] = j;
+    _segOffsets[j] = t;
 
-    int[][][] _corpus = new int[n][][];
-    i = 0;
-    for (int j = 0; j < corpus.length; j++)
-      if (filt[j])
-        _corpus[i++] = corpus[j];
+    return new StopSegmentCorpus(getAlpha(), _tokens, _sentOffsets,
+        _segOffsets);
+  }
 
-    return fromArrays(getAlpha(), _corpus);
+  /** @return sentence <code>i</code> as an array of segments */
+  public int[][] getSentence(final int i) {
+    final int[][] sent = new int[segmentEnd(i) - segmentStart(i)][];
+    for (int j = 0; j < sent.length; j++) {
+      final int seg = segmentStart(i) + j;
+      sent[j] = Arrays.copyOfRange(tokens, tokenStart(seg), tokenEnd(seg));
+    }
+    return sent;
   }
 
   public Iterable<int[][]> arrayIter() {
@@ -80,30 +205,37 @@ public class StopSegmentCorpus {
 
           @Override
           public int[][] next() {
-            return corpus[i++];
+            return getSentence(i++);
           }
 
           @Override
           public boolean hasNext() {
-            return i < corpus.length;
+            return i < size();
           }
         };
       }
     };
   }
 
+  /**
+   * @return a copy of the corpus as nested arrays, built anew on every call;
+   *         loops over the corpus should use the offset accessors instead
+   */
   public int[][][] getArrays() {
+    final int[][][] corpus = new int[size()][][];
+    for (int i = 0; i < corpus.length; i++)
+      corpus[i] = getSentence(i);
     return corpus;
   }
 
   public void writeTo(String output) throws IOException {
     BufferedWriter bw = new BufferedWriter(new FileWriter(output));
-    for (int[][] sent : corpus) {
+    for (int i = 0; i < size(); i++) {
       bw.write("__stop__");
-      for (int[] seg : sent) {
-        for (int w : seg) {
+      for (int seg = segmentStart(i); seg < segmentEnd(i); seg++) {
+        for (int t = tokenStart(seg); t < tokenEnd(seg); t++) {
           bw.write(" ");
-          bw.write(getAlpha().getString(w));
+          bw.write(getAlpha().getString(tokens[t]));
         }
         bw.write(" __stop__");
       }
@@ -117,25 +249,26 @@ public class StopSegmentCorpus {
   }
 
   public int size() {
-    return corpus.length;
+    return sentOffsets.length - 1;
   }
 
   /** Reverse sequence of words in corpus */
   public void reverse() {
-    corpus = Util.reverse(corpus);
+    tokens = Util.reverse(tokens);
+    sentOffsets = Util.reverseOffsets(sentOffsets);
+    segOffsets = Util.reverseOffsets(segOffsets);
   }
 
   public void writeTokenizedPlaintextTo(String output) throws IOException {
     BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF8"));
-    for (int[][] sent : corpus) {
-      final int n = sent.length;
-      for (int i = 0; i < n; i++) {
-        final int[] seg = sent[i];
-        for (int w : seg) {
-          bw.write(getAlpha().getString(w));
+    for (int i = 0; i < size(); i++) {
+      final int last = segmentEnd(i) - 1;
+      for (int seg = segmentStart(i); seg <= last; seg++) {
+        for (int t = tokenStart(seg); t < tokenEnd(seg); t++) {
+          bw.write(getAlpha().getString(tokens[t]));
           bw.write(" ");
         }
-        if (i != n - 1)
+        if (seg != last)
           bw.write(", ");
       }
       bw.write(".\n");
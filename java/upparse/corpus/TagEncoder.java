@@ -29,19 +29,37 @@ public abstract class TagEncoder {
 
   private final int stopv;
   private final int eosv;
+  private final String stop;
+  private String type = null;
   final Alpha alpha;
 
   public TagEncoder(String stop, Alpha alpha) {
     this.alpha = alpha;
+    this.stop = stop;
     stopv = alpha.getCode(stop);
     eosv = alpha.getCode(EOS);
   }
 
+  /** @return the type name this encoder was created from, as accepted by
+   * {@link #getBIOEncoder(String, String, Alpha)}, or null if it was not
+   * created that way */
+  public String getType() {
+    return type;
+  }
+
+  public String getStop() {
+    return stop;
+  }
+
+  public Alpha getAlpha() {
+    return alpha;
+  }
+
   protected boolean isStop(int w) {
     return w == stopv;
   }
 
-  protected boolean isEos(int w) {
+  public boolean isEos(int w) {
     return w == eosv;
   }
 
@@ -55,6 +73,13 @@ public abstract class TagEncoder {
 
   public static TagEncoder getBIOEncoder(final String type,
       final String stop, final Alpha alpha) throws EncoderError {
+    final TagEncoder encoder = newBIOEncoder(type, stop, alpha);
+    encoder.type = type;
+    return encoder;
+  }
+
+  private static TagEncoder newBIOEncoder(final String type,
+      final String stop, final Alpha alpha) throws EncoderError {
     if (type.equals("BIO_GP_NOSTOP"))
       return new GrandparentWithStopBIOEncoder(stop, alpha);
     
@@ -88,33 +113,24 @@ public abstract class TagEncoder {
 
   public final int[] tokensFromClumpedCorpus(final ChunkedSegmentedCorpus corpus) {
 
-    int[][][][] clumpedCorpus = corpus.getArrays();
-
-    // count tokens
-    int n = 1; // for start token
-    for (int[][][] s : clumpedCorpus) {
-      if (s.length != 0) {
-        for (int[][] seg : s) {
-          for (int[] clump : seg) {
-            n += clump.length;
-          }
-          n++;
-        }
-      } else
-        n++;
-    }
+    // count tokens: one more for the start token, and one after each segment
+    // or empty sentence
+    int n = 1 + corpus.numTokens();
+    for (int s = 0; s < corpus.nSentences(); s++)
+      n += Math.max(corpus.segmentEnd(s) - corpus.segmentStart(s), 1);
 
     int[] tokens = new int[n];
     int i = 0, eosv = alpha.getCode(EOS);
     tokens[i++] = eosv;
 
-    for (int[][][] s : clumpedCorpus) {
-      if (s.length != 0) {
-        for (int[][] seg : s) {
-          for (int[] clump : seg) {
-            System.arraycopy(clump, 0, tokens, i, clump.length);
-            i += clump.length;
-          }
+    for (int s = 0; s < corpus.nSentences(); s++) {
+      if (corpus.segmentEnd(s) != corpus.segmentStart(s)) {
+        for (int seg = corpus.segmentStart(s); seg < corpus.segmentEnd(s); 
+            seg++) {
+          // the chunks of a segment are contiguous
+          for (int t = corpus.tokenStart(corpus.chunkStart(seg)); 
+              t < corpus.tokenStart(corpus.chunkEnd(seg)); t++)
+            tokens[i++] = corpus.token(t);
           tokens[i++] = stopv;
         }
         tokens[i - 1] = eosv;
@@ -154,33 +170,30 @@ public abstract class TagEncoder {
 
   public abstract double[] getInitTagProb();
 
-  public double[][][] softCounts(final StopSegmentCorpus corpus) {
+  public ArcCounts softCounts(final StopSegmentCorpus corpus) {
     return softCounts(tokensFromStopSegmentCorpus(corpus));
   }
 
   public int[] tokensFromStopSegmentCorpus(final StopSegmentCorpus corpus) {
-    int[][][] clumpedCorpus = corpus.corpus;
-
-    // count tokens
-    int n = 1; // for start token
-    for (int[][] s : clumpedCorpus) {
-      if (s.length != 0) {
-        for (int[] seg : s) {
-          n += seg.length + 1;
-        }
-      } else
-        n++;
-    }
+    final int[] sentOffsets = corpus.sentOffsets, segOffsets = corpus.segOffsets;
+    final int nsent = sentOffsets.length - 1;
+
+    // count tokens: one more for the start token, and one after each segment
+    // or empty sentence
+    int n = 1 + corpus.tokens.length;
+    for (int s = 0; s < nsent; s++)
+      n += Math.max(sentOffsets[s + 1] - sentOffsets[s], 1);
 
     int[] tokens = new int[n];
     int i = 0, eosv = alpha.getCode(EOS);
     tokens[i++] = eosv;
 
-    for (int[][] s : clumpedCorpus) {
-      if (s.length != 0) {
-        for (int[] seg : s) {
-          System.arraycopy(seg, 0, tokens, i, seg.length);
-          i += seg.length;
+    for (int s = 0; s < nsent; s++) {
+      if (sentOffsets[s + 1] != sentOffsets[s]) {
+        for (int seg = sentOffsets[s]; seg < sentOffsets[s + 1]; seg++) {
+          final int len = segOffsets[seg + 1] - segOffsets[seg];
+          System.arraycopy(corpus.tokens, segOffsets[seg], tokens, i, len);
+          i += len;
           tokens[i++] = stopv;
         }
         tokens[i - 1] = eosv;
@@ -191,12 +204,31 @@ public abstract class TagEncoder {
     return tokens;
   }
 
-  public double[][][] softCounts(final int[] train) {
+  public ArcCounts softCounts(final int[] train) {
+    final ArcCounts counts = 
+      new ArcCounts(constraints(), MaxVals.arrayMax(train) + 1);
+    addSoftCounts(train, counts);
+    return counts;
+  }
+
+  /**
+   * Soft counts for training data read one piece at a time, as from
+   * {@link #tokenStream(Iterable)}. As for {@link #softCounts(int[])}, the
+   * vocabulary is sized by the largest token code in the data.
+   */
+  public ArcCounts softCounts(final Iterable<int[]> pieces)
+      throws EncoderError {
+    final ArcCounts counts = new ArcCounts(constraints(), streamVocab(pieces));
+    for (final int[] piece : pieces)
+      addSoftCounts(piece, counts);
+    return counts;
+  }
+
+  /** Add the soft counts for <code>train</code> to <code>counts</code> */
+  public void addSoftCounts(final int[] train, final ArcCounts counts) {
     final boolean[][] constraints = constraints();
     final double[][] tags = softTrain(train);
-    final int nVocab = MaxVals.arrayMax(train) + 1;
     final int nTag = numTags();
-    final double[][][] counts = new double[nTag][nVocab][nTag];
 
     for (int i = 0; i < train.length - 1; i++) {
       double numOK = 0, numTotal = 0;
@@ -212,39 +244,128 @@ public abstract class TagEncoder {
 
       for (int t = 0; t < nTag; t++) {
         for (int _t = 0; _t < nTag; _t++) {
-          if (!constraints[t][_t])
-            counts[t][train[i]][_t] += ratio * tags[i][t] * tags[i + 1][_t];
+          if (!constraints[t][_t] && tags[i][t] != 0 && tags[i + 1][_t] != 0)
+            counts.add(t, train[i], _t, ratio * tags[i][t] * tags[i + 1][_t]);
         }
       }
 
     }
+  }
+
+  public ArcCounts hardCounts(final ChunkedSegmentedCorpus corpus)
+      throws EncoderError {
+    final int[] tokens = tokensFromClumpedCorpus(corpus);
+    final ArcCounts counts = 
+      new ArcCounts(constraints(), MaxVals.arrayMax(tokens) + 1);
+    addHardCounts(corpus, tokens, counts);
+    return counts;
+  }
+
+  /**
+   * Counts of the tags for chunked batches of sentences read one at a time,
+   * with the vocabulary sized by the largest token code in the data
+   */
+  public ArcCounts hardCounts(final Iterable<ChunkedSegmentedCorpus> batches)
+      throws EncoderError {
+    final ArcCounts counts = 
+      new ArcCounts(constraints(), streamVocab(clumpedTokenStream(batches)));
+    for (final ChunkedSegmentedCorpus batch : batches)
+      addHardCounts(batch, counts);
     return counts;
   }
 
-  public double[][][] hardCounts(final ChunkedSegmentedCorpus corpus)
+  /** @return one more than the largest token code in the pieces */
+  private static int streamVocab(final Iterable<int[]> pieces)
       throws EncoderError {
-    final int[] tokens = tokensFromClumpedCorpus(corpus), tags = bioTrain(
-        corpus, tokens.length);
+    final int max = MaxVals.arrayMax(pieces);
+    if (max < 0)
+      throw new EncoderError("No training data to read");
+    return max + 1;
+  }
 
-    final int nTerm = MaxVals.arrayMax(tokens) + 1, nTag = numTags();
+  /** Add the counts of the tags for <code>corpus</code> to
+   * <code>counts</code> */
+  public void addHardCounts(final ChunkedSegmentedCorpus corpus,
+      final ArcCounts counts) throws EncoderError {
+    addHardCounts(corpus, tokensFromClumpedCorpus(corpus), counts);
+  }
 
-    final int[][][] counts = new int[nTag][nTerm][nTag];
+  private void addHardCounts(final ChunkedSegmentedCorpus corpus,
+      final int[] tokens, final ArcCounts counts) throws EncoderError {
+    final int[] tags = bioTrain(corpus, tokens.length);
     for (int t = 0; t < tokens.length - 1; t++)
-      counts[tags[t]][tokens[t]][tags[t + 1]]++;
+      counts.add(tags[t], tokens[t], tags[t + 1], 1);
+  }
 
-    final double[][][] countsD = new double[nTag][nTerm][nTag];
-    for (int t = 0; t < nTag; t++)
-      for (int w = 0; w < nTerm; w++)
-        for (int _t = 0; _t < nTag; _t++)
-          countsD[t][w][_t] = (double) counts[t][w][_t];
+  /**
+   * Encode each batch of sentences as it is read. Each piece begins with the
+   * end-of-sentence token that ends the one before, as
+   * {@link SequenceModel#emUpdateFrom(Iterable)} expects.
+   */
+  public Iterable<int[]> tokenStream(
+      final Iterable<StopSegmentCorpus> batches) {
+    return new TokenStream<StopSegmentCorpus>(batches) {
+      @Override
+      int[] encode(final StopSegmentCorpus batch) {
+        return tokensFromStopSegmentCorpus(batch);
+      }
+    };
+  }
 
-    return countsD;
+  /** Encode each batch of chunked sentences as it is read, likewise */
+  public Iterable<int[]> clumpedTokenStream(
+      final Iterable<ChunkedSegmentedCorpus> batches) {
+    return new TokenStream<ChunkedSegmentedCorpus>(batches) {
+      @Override
+      int[] encode(final ChunkedSegmentedCorpus batch) {
+        return tokensFromClumpedCorpus(batch);
+      }
+    };
+  }
+
+  private static abstract class TokenStream<T> implements Iterable<int[]> {
+    private final Iterable<T> batches;
+
+    TokenStream(final Iterable<T> _batches) {
+      batches = _batches;
+    }
+
+    abstract int[] encode(T batch);
+
+    @Override
+    public Iterator<int[]> iterator() {
+      final Iterator<T> iter = batches.iterator();
+      return new Iterator<int[]>() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public int[] next() {
+          return encode(iter.next());
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
   }
 
   public abstract int[] allNonStopTags();
 
   public abstract int[] allStopTags();
 
+  /**
+   * @return whether the sentence boundary token has just one tag, so that
+   *         forward-backward can be cut at sentence boundaries
+   */
+  public boolean hasSingleTagEos() {
+    return allStopTags().length == 1;
+  }
+
   /**
    * Create uniform emissions probabilities subject to the constraints imposed
    * by this encoding scheme
@@ -311,24 +432,31 @@ public abstract class TagEncoder {
     return EmissionProbs.directFromProbs(randProb, isStopPred(), smoothParam);
   }
   
-  private double[][][] combineForJoint(final double[][] emiss, final double[][] trans) {
+  /**
+   * Combine emission and transition log probabilities into joint
+   * tag-word-tag probabilities, stored as pseudo-counts
+   */
+  private ArcCounts combineForJoint(final double[][] emiss, final double[][] trans) {
     final int ntag = numTags();
     final int numVocab = emiss[0].length;
-    final double[][][] pr = new double[ntag][ntag][numVocab];
-    for (int q = 0; q < ntag; q++)
-      for (int r = 0; r < ntag; r++)
-        for (int v = 0; v < numVocab; v++)
-          pr[q][r][v] = emiss[q][v] + trans[q][r];
+    final ArcCounts pr = new ArcCounts(constraints(), numVocab);
+    for (int v = 0; v < numVocab; v++)
+      for (int q = 0; q < ntag; q++)
+        for (int r = 0; r < ntag; r++) {
+          final double p = Math.exp(emiss[q][v] + trans[q][r]);
+          if (p != 0)
+            pr.add(q, v, r, p);
+        }
     return pr;
   }
 
-  public double[][][] altUniformJoint(final int numVocab) {
+  public ArcCounts altUniformJoint(final int numVocab) {
     final double[][] emiss = altUniformEmissP(numVocab);
     final double[][] trans = altUniformTrans();
     return combineForJoint(emiss, trans);
   }
 
-  public double[][][] randomJoint(final int size) {
+  public ArcCounts randomJoint(final int size) {
     final double[][] emiss = randomEmiss(size);
     final double[][] trans = randomTrans();
     return combineForJoint(emiss, trans);
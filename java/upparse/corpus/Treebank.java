@@ -0,0 +1,109 @@
+package upparse.corpus;
+
+import java.util.*;
+
+/**
+ * The trees of a treebank, parsed once and kept in memory. The evaluation
+ * gold standards, test corpus and POS sequences are all derived from these
+ * trees, so the files are read and parsed only once however many of them are
+ * needed.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public class Treebank implements Iterable<LabeledBracketSet> {
+
+  private final Alpha alpha;
+  private final CorpusConstraints cc;
+  private final LabeledBracketSet[] trees;
+
+  /** Unlabeled trees, shared by the clumps and bracket gold standards */
+  private UnlabeledBracketSet[] unlabeled = null;
+
+  private Treebank(final Alpha _alpha, final CorpusConstraints _cc,
+      final LabeledBracketSet[] _trees) {
+    alpha = _alpha;
+    cc = _cc;
+    trees = _trees;
+  }
+
+  public static Treebank fromFiles(final CorpusType type, final Alpha alpha,
+      final String[] files) throws CorpusError {
+    return fromFiles(type, alpha, files, 1);
+  }
+
+  /** @param numThreads Number of threads used to read the files */
+  public static Treebank fromFiles(final CorpusType type, final Alpha alpha,
+      final String[] files, final int numThreads) throws CorpusError {
+    switch (type) {
+      case WSJ:
+        return fromTreeIter(alpha, WSJCorpusStandard.instance,
+            WSJCorpusTreeIter.fromFiles(files, alpha, numThreads));
+
+      case NEGRA:
+        return fromTreeIter(alpha, NegraCorpusStandard.instance,
+            NegraCorpusTreeIter.fromFiles(files, alpha, numThreads));
+
+      case CTB:
+        return fromTreeIter(alpha, CTBCorpusStandard.instance,
+            CTBCorpusTreeIter.fromFiles(files, alpha, numThreads));
+
+      default:
+        throw new CorpusError("Unexpected file type for treebank: " + type);
+    }
+  }
+
+  public static Treebank fromTreeIter(final Alpha alpha,
+      final CorpusConstraints cc, final Iterable<LabeledBracketSet> iter) {
+    final List<LabeledBracketSet> l = new ArrayList<LabeledBracketSet>();
+    for (final LabeledBracketSet t : iter)
+      l.add(t);
+    return new Treebank(alpha, cc, l.toArray(new LabeledBracketSet[0]));
+  }
+
+  public CorpusConstraints getConstraints() {
+    return cc;
+  }
+
+  public int size() {
+    return trees.length;
+  }
+
+  @Override
+  public Iterator<LabeledBracketSet> iterator() {
+    return Collections.unmodifiableList(Arrays.asList(trees)).iterator();
+  }
+
+  public StopSegmentCorpus stopSegmentCorpus(final int numSent,
+      final boolean noSeg) {
+    return stopSegmentCorpus(numSent, -1, noSeg);
+  }
+
+  /** @param filterLen If positive, keep only sentences up to this length */
+  public StopSegmentCorpus stopSegmentCorpus(final int numSent,
+      final int filterLen, final boolean noSeg) {
+    return CorpusUtil.treeIterStopSegmentCorpus(alpha, this, cc, numSent,
+        filterLen, noSeg);
+  }
+
+  public ChunkedCorpus clumpGoldStandard() {
+    return CorpusUtil.getChunkedCorpusClumps(alpha, unlabeledIter());
+  }
+
+  /** @return the lowest constituents labeled <code>cat</code> in each tree */
+  public ChunkedCorpus lowestChunksGoldStandard(final String cat) {
+    return CorpusUtil.getChunkedCorpusNPs(alpha, this, cat, cc);
+  }
+
+  public UnlabeledBracketSetCorpus unlabeledBracketSetCorpus() {
+    return UnlabeledBracketSetCorpus.fromTreeIter(unlabeledIter());
+  }
+
+  private Iterable<UnlabeledBracketSet> unlabeledIter() {
+    if (unlabeled == null) {
+      unlabeled = new UnlabeledBracketSet[trees.length];
+      for (int i = 0; i < trees.length; i++)
+        unlabeled[i] = trees[i].unlabeled(cc);
+    }
+    return Arrays.asList(unlabeled);
+  }
+}
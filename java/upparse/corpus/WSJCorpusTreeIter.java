@@ -7,12 +7,17 @@ package upparse.corpus;
 public class WSJCorpusTreeIter extends CorpusTreeIter {
   
   private WSJCorpusTreeIter(
-      final WSJCorpusTreeStringIter _strIter, Alpha alpha) {
-    super(_strIter, alpha);
+      final WSJCorpusTreeStringIter _strIter, Alpha alpha, int numThreads) {
+    super(_strIter, alpha, numThreads);
   }
 
   public static CorpusTreeIter fromFiles(final String[] files, Alpha alpha) {
+    return fromFiles(files, alpha, 1);
+  }
+
+  public static CorpusTreeIter fromFiles(final String[] files, Alpha alpha,
+      final int numThreads) {
     return new WSJCorpusTreeIter(
-        WSJCorpusTreeStringIter.fromFiles(files), alpha);
+        WSJCorpusTreeStringIter.fromFiles(files), alpha, numThreads);
   }
 }
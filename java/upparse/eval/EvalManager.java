@@ -28,6 +28,7 @@ public class EvalManager {
   private ChunkedCorpus clumpGoldStandard = null;
   private UnlabeledBracketSetCorpus goldUnlabeledBracketSet = null;
   private StopSegmentCorpus testStopSegmentCorpus = null;
+  private Treebank testTreebank = null;
   private final int numSent = -1;
   private final boolean onlyLast = false;
   private TreebankEval treebankEval;
@@ -39,6 +40,7 @@ public class EvalManager {
   private ChunkedCorpus ppsGoldStandard;
   private TreebankEval ubsFromPPsEval;
   private boolean reverse = false;
+  private int numThreads = 1;
   private String[][] outputText = null;
   
   public String[][] getTestPos() {
@@ -46,13 +48,40 @@ public class EvalManager {
   }
   
   public String[][] getTestPos(String puncSymbol) {
-    return GetPOS.getPos(alpha, corpusFiles, testFileType, puncSymbol, filterLength);
+    try {
+      final Treebank treebank = getTestTreebank();
+      return GetPOS.getPos(treebank, treebank.getConstraints(), puncSymbol,
+          filterLength);
+    } catch (CorpusError e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private boolean testIsTreebank() {
+    return testFileType == CorpusType.WSJ || testFileType == CorpusType.NEGRA
+        || testFileType == CorpusType.CTB;
+  }
+
+  /** 
+   * @return the parsed test files, read once and shared by all of the gold
+   * standards
+   */
+  private Treebank getTestTreebank() throws CorpusError {
+    if (testTreebank == null)
+      testTreebank = 
+        Treebank.fromFiles(testFileType, alpha, corpusFiles, numThreads);
+    return testTreebank;
   }
 
   public void setNoSeg(final boolean b) {
     noSeg = b;
   }
 
+  /** Set the number of threads used to read the test files */
+  public void setNumThreads(final int n) {
+    numThreads = n;
+  }
+
   public void writeMetadata(final PrintStream s) {
     s.print("  Evaluation type: ");
     for (final Eval e : evals)
@@ -70,6 +99,7 @@ public class EvalManager {
 
   public void setTestFileType(final CorpusType t) {
     testFileType = t;
+    testTreebank = null;
   }
 
   public void setEvalReportType(final EvalReportType type) {
@@ -128,6 +158,7 @@ public class EvalManager {
 
   public void setTestCorpusString(final String[] filenames) {
     corpusFiles = filenames;
+    testTreebank = null;
   }
 
   private UnlabeledBracketSetCorpus getGoldUnlabeledBracketSets()
@@ -137,16 +168,19 @@ public class EvalManager {
   }
 
   private void checkGoldUnlabeledBracketSet() throws CorpusError {
-    if (goldUnlabeledBracketSet == null)
-      goldUnlabeledBracketSet = CorpusUtil.goldUnlabeledBracketSets(
-          testFileType, alpha, corpusFiles, filterLength, reverse);
+    if (goldUnlabeledBracketSet == null) {
+      goldUnlabeledBracketSet = 
+        getTestTreebank().unlabeledBracketSetCorpus();
+      if (filterLength > 0)
+        goldUnlabeledBracketSet = 
+          goldUnlabeledBracketSet.filterBySentenceLength(filterLength);
+    }
     assert goldUnlabeledBracketSet != null;
   }
 
   private void checkNPsGoldStandard() throws CorpusError {
     if (npsGoldStandard == null)
-      npsGoldStandard = CorpusUtil.npsGoldStandard(testFileType, alpha,
-          corpusFiles, filterLength);
+      npsGoldStandard = lowestChunksGoldStandard("NP");
     assert npsGoldStandard != null;
   }
 
@@ -162,11 +196,18 @@ public class EvalManager {
 
   private void checkPPsGoldStandard() throws CorpusError {
     if (ppsGoldStandard == null)
-      ppsGoldStandard = CorpusUtil.ppsGoldStandard(testFileType, alpha,
-          corpusFiles, filterLength);
+      ppsGoldStandard = lowestChunksGoldStandard("PP");
     assert ppsGoldStandard != null;
   }
 
+  private ChunkedCorpus lowestChunksGoldStandard(final String cat) 
+  throws CorpusError {
+    final ChunkedCorpus corpus = 
+      getTestTreebank().lowestChunksGoldStandard(cat);
+    return filterLength > 0 ? corpus.filterBySentenceLength(filterLength)
+        : corpus;
+  }
+
   private ChunkedCorpus getPPsGoldStandard() throws CorpusError {
     checkPPsGoldStandard();
     return ppsGoldStandard;
@@ -175,21 +216,17 @@ public class EvalManager {
   private void makeClumpGoldStandard() throws EvalError {
     switch (testFileType) {
       case WSJ:
-        clumpGoldStandard = 
-          CorpusUtil.wsjClumpGoldStandard(alpha, corpusFiles);
-        break;
-
       case NEGRA:
-        clumpGoldStandard = 
-          CorpusUtil.negraClumpGoldStandard(alpha, corpusFiles);
-        break;
-
       case CTB:
-        clumpGoldStandard = 
-          CorpusUtil.ctbClumpGoldStandard(alpha, corpusFiles);
+        try {
+          clumpGoldStandard = getTestTreebank().clumpGoldStandard();
+        } catch (CorpusError e) {
+          throw new EvalError(e.getMessage());
+        }
         break;
         
       case SPL:
+      case BIN:
         evalTypes.clear();
         evalTypes.add(OutputType.NONE);
         evals.clear();
@@ -227,7 +264,7 @@ public class EvalManager {
 
   public StopSegmentCorpus getEvalStopSegmentCorpus() throws CorpusError,
       EvalError {
-    if (evals.size() == 0 && testFileType != CorpusType.SPL) 
+    if (evals.size() == 0 && doEval()) 
       initParseEvaluationTypes();
     if (testStopSegmentCorpus == null)
       makeEvalStopSegmentCorpus();
@@ -235,8 +272,12 @@ public class EvalManager {
   }
 
   private void makeEvalStopSegmentCorpus() throws CorpusError {
-    testStopSegmentCorpus = CorpusUtil.stopSegmentCorpus(alpha, corpusFiles,
-        testFileType, numSent, filterLength, noSeg, reverse);
+    if (testIsTreebank())
+      testStopSegmentCorpus = CorpusUtil.stopSegmentCorpus(getTestTreebank(),
+          numSent, filterLength, noSeg, reverse);
+    else
+      testStopSegmentCorpus = CorpusUtil.stopSegmentCorpus(alpha, corpusFiles,
+          testFileType, numSent, filterLength, noSeg, reverse, numThreads);
   }
 
   public boolean isNull() throws EvalError, CorpusError {
@@ -318,7 +359,7 @@ public class EvalManager {
   }
 
   public boolean doEval() { 
-    return testFileType != CorpusType.SPL;
+    return testFileType != CorpusType.SPL && testFileType != CorpusType.BIN;
   }
 
   public void setReverseEval(final boolean r) {
@@ -0,0 +1,232 @@
+package upparse.model;
+
+import static java.util.Arrays.*;
+
+/**
+ * Sparse store of tag-word-tag counts, as used to estimate sequence models.
+ *
+ * <p>For each word there is one row per tag seen emitting that word, and each
+ * row only has cells for the successor tags allowed by the tagset
+ * constraints, so the store grows with the size of the tag dictionary rather
+ * than with <code>ntag * nvocab * ntag</code>.</p>
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public final class ArcCounts {
+
+  private final int ntag;
+
+  /** Allowed successors of each tag */
+  private final int[][] succ;
+
+  /** Index of each tag in the successor list of each tag, or -1 */
+  private final int[][] succIndex;
+
+  /** Per word: the tags with a row, and the offset of each row in vals */
+  private final int[][] rowTags, rowOff;
+  private final int[] nrow;
+
+  /** Per word: the cells for all rows, laid out one row after another */
+  private final double[][] vals;
+
+  /**
+   * @param constraints
+   *          Tag-pair constraints, <code>true</code> where the pair is
+   *          disallowed
+   * @param nterm
+   *          Vocabulary size
+   */
+  public ArcCounts(final boolean[][] constraints, final int nterm) {
+    ntag = constraints.length;
+    succ = new int[ntag][];
+    succIndex = new int[ntag][ntag];
+    for (int j = 0; j < ntag; j++) {
+      final int[] s = new int[ntag];
+      int n = 0;
+      for (int k = 0; k < ntag; k++) {
+        if (constraints[j][k])
+          succIndex[j][k] = -1;
+        else {
+          succIndex[j][k] = n;
+          s[n++] = k;
+        }
+      }
+      succ[j] = copyOf(s, n);
+    }
+
+    rowTags = new int[nterm][];
+    rowOff = new int[nterm][];
+    nrow = new int[nterm];
+    vals = new double[nterm][];
+    for (int w = 0; w < nterm; w++) {
+      rowTags[w] = new int[0];
+      rowOff[w] = new int[0];
+      vals[w] = new double[0];
+    }
+  }
+
+  /**
+   * Create a count store with rows already laid out for each word in the
+   * tag dictionary, so that collecting counts does no further allocation
+   */
+  ArcCounts(final boolean[][] constraints, final TagDict tagdict) {
+    this(constraints, tagdict.numTerms());
+    for (int w = 0; w < tagdict.numTerms(); w++) {
+      final int[] tags = tagdict.tags(w);
+      rowTags[w] = tags.clone();
+      rowOff[w] = new int[tags.length];
+      int n = 0;
+      for (int r = 0; r < tags.length; r++) {
+        rowOff[w][r] = n;
+        n += succ[tags[r]].length;
+      }
+      nrow[w] = tags.length;
+      vals[w] = new double[n];
+    }
+  }
+
+  public int numTags() {
+    return ntag;
+  }
+
+  public int numTerms() {
+    return vals.length;
+  }
+
+  private int row(final int j, final int w) {
+    final int[] tags = rowTags[w];
+    for (int r = 0; r < nrow[w]; r++)
+      if (tags[r] == j)
+        return r;
+    return -1;
+  }
+
+  private int newRow(final int j, final int w) {
+    final int r = nrow[w]++;
+    if (r == rowTags[w].length) {
+      rowTags[w] = copyOf(rowTags[w], r + 1);
+      rowOff[w] = copyOf(rowOff[w], r + 1);
+    }
+    final int off = vals[w].length;
+    rowTags[w][r] = j;
+    rowOff[w][r] = off;
+    vals[w] = copyOf(vals[w], off + succ[j].length);
+    return r;
+  }
+
+  /** Add <code>c</code> to the count of tag <code>j</code> emitting word
+   * <code>w</code> followed by tag <code>k</code> */
+  public void add(final int j, final int w, final int k, final double c) {
+    final int i = succIndex[j][k];
+    if (i == -1) {
+      assert c == 0 : "count for disallowed tag pair " + j + "," + k;
+      return;
+    }
+    int r = row(j, w);
+    if (r == -1)
+      r = newRow(j, w);
+    vals[w][rowOff[w][r] + i] += c;
+  }
+
+  public double get(final int j, final int w, final int k) {
+    final int i = succIndex[j][k], r = row(j, w);
+    return i == -1 || r == -1 ? 0 : vals[w][rowOff[w][r] + i];
+  }
+
+  /** Add all of the counts in <code>other</code> to these counts */
+  public void addAll(final ArcCounts other) {
+    addAll(other, 1);
+  }
+
+  /** Add the counts in <code>other</code>, multiplied by <code>factor</code> */
+  public void addAll(final ArcCounts other, final double factor) {
+    assert other.ntag == ntag && other.numTerms() == numTerms();
+    for (int w = 0; w < other.numTerms(); w++) {
+      for (int r = 0; r < other.nrow[w]; r++) {
+        final int j = other.rowTags[w][r], off = other.rowOff[w][r];
+        int _r = row(j, w);
+        if (_r == -1)
+          _r = newRow(j, w);
+        final int _off = rowOff[w][_r];
+        for (int i = 0; i < succ[j].length; i++)
+          vals[w][_off + i] += factor * other.vals[w][off + i];
+      }
+    }
+  }
+
+  /** Multiply all of the counts by <code>factor</code> */
+  public void scale(final double factor) {
+    for (final double[] v : vals)
+      for (int i = 0; i < v.length; i++)
+        v[i] *= factor;
+  }
+
+  /** Zero the counts for each word in <code>words</code>, keeping the rows */
+  public void clear(final int[] words) {
+    for (final int w : words)
+      fill(vals[w], 0);
+  }
+
+  /**
+   * Sum the counts for word <code>w</code> over successor tags into
+   * <code>emiss</code>, indexed by tag
+   */
+  public void emissionCounts(final int w, final double[] emiss) {
+    fill(emiss, 0);
+    for (int r = 0; r < nrow[w]; r++) {
+      final int j = rowTags[w][r], off = rowOff[w][r];
+      for (int i = 0; i < succ[j].length; i++)
+        emiss[j] += vals[w][off + i];
+    }
+  }
+
+  /** @return the counts summed over successor tags, indexed by [tag][word] */
+  public double[][] emissionCounts() {
+    final double[][] emiss = new double[ntag][numTerms()];
+    for (int w = 0; w < numTerms(); w++) {
+      for (int r = 0; r < nrow[w]; r++) {
+        final int j = rowTags[w][r], off = rowOff[w][r];
+        for (int i = 0; i < succ[j].length; i++)
+          emiss[j][w] += vals[w][off + i];
+      }
+    }
+    return emiss;
+  }
+
+  /** @return the counts summed over words, indexed by [tag][next tag] */
+  public double[][] transitionCounts() {
+    final double[][] trans = new double[ntag][ntag];
+    for (int w = 0; w < numTerms(); w++) {
+      for (int r = 0; r < nrow[w]; r++) {
+        final int j = rowTags[w][r], off = rowOff[w][r];
+        for (int i = 0; i < succ[j].length; i++)
+          trans[j][succ[j][i]] += vals[w][off + i];
+      }
+    }
+    return trans;
+  }
+
+  /** @return the number of rows of counts for word <code>w</code> */
+  public int numRows(final int w) {
+    return nrow[w];
+  }
+
+  /** @return the tag of row <code>r</code> for word <code>w</code> */
+  public int rowTag(final int w, final int r) {
+    return rowTags[w][r];
+  }
+
+  /** @return the successor tags with a cell in each row of tag <code>j</code> */
+  public int[] successors(final int j) {
+    return succ[j];
+  }
+
+  /**
+   * @return the count at successor <code>i</code> (an index into
+   *         {@link #successors(int)}) of row <code>r</code> for word
+   *         <code>w</code>
+   */
+  public double rowValue(final int w, final int r, final int i) {
+    return vals[w][rowOff[w][r] + i];
+  }
+}
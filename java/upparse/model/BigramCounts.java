@@ -0,0 +1,108 @@
+package upparse.model;
+
+import java.util.*;
+
+/**
+ * Counts of word bigrams, in an open-addressing hash table keyed on both
+ * words packed into a <code>long</code>, so there are no per-entry objects
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public final class BigramCounts {
+
+  /** Marks an empty slot; no pair of non-negative codes packs to this */
+  private static final long EMPTY = -1L;
+
+  private long[] keys;
+  private double[] vals;
+  private int size = 0;
+
+  public BigramCounts() {
+    this(1024);
+  }
+
+  /** @param expected Number of distinct bigrams expected */
+  public BigramCounts(final int expected) {
+    int cap = 16;
+    while (cap < 2 * expected)
+      cap <<= 1;
+    keys = new long[cap];
+    vals = new double[cap];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  private static long key(final int w1, final int w2) {
+    assert w1 >= 0 && w2 >= 0;
+    return ((long) w1 << 32) | w2;
+  }
+
+  private static int hash(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    return (int) k;
+  }
+
+  /** @return the slot holding <code>k</code>, or the empty slot where it
+   * would go */
+  private int slot(final long k) {
+    final int mask = keys.length - 1;
+    int i = hash(k) & mask;
+    while (keys[i] != k && keys[i] != EMPTY)
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  public double get(final int w1, final int w2) {
+    final int i = slot(key(w1, w2));
+    return keys[i] == EMPTY ? 0 : vals[i];
+  }
+
+  public void incr(final int w1, final int w2) {
+    add(w1, w2, 1);
+  }
+
+  public void add(final int w1, final int w2, final double c) {
+    add(key(w1, w2), c);
+  }
+
+  private void add(final long k, final double c) {
+    int i = slot(k);
+    if (keys[i] == EMPTY) {
+      if (2 * (size + 1) > keys.length) {
+        rehash(2 * keys.length);
+        i = slot(k);
+      }
+      keys[i] = k;
+      size++;
+    }
+    vals[i] += c;
+  }
+
+  /** Add all of the counts in <code>other</code> to these counts */
+  public void addAll(final BigramCounts other) {
+    for (int i = 0; i < other.keys.length; i++)
+      if (other.keys[i] != EMPTY)
+        add(other.keys[i], other.vals[i]);
+  }
+
+  /** @return the number of distinct bigrams counted */
+  public int size() {
+    return size;
+  }
+
+  private void rehash(final int cap) {
+    final long[] oldKeys = keys;
+    final double[] oldVals = vals;
+    keys = new long[cap];
+    vals = new double[cap];
+    Arrays.fill(keys, EMPTY);
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != EMPTY) {
+        final int i = slot(oldKeys[j]);
+        keys[i] = oldKeys[j];
+        vals[i] = oldVals[j];
+      }
+    }
+  }
+}
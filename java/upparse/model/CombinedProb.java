@@ -1,7 +1,8 @@
 package upparse.model;
 
 import static java.lang.Math.*;
-import static upparse.util.Util.*;
+
+import java.io.*;
 
 /**
  * Combined emission-transition probilities for right-regular grammar
@@ -9,36 +10,85 @@ import static upparse.util.Util.*;
  */
 public class CombinedProb {
 
-  private final double[][][] prob;
+  /** Log arc probabilities log(p(w,t2|t1)), rebuilt on every update. The
+   * table is word-major: one contiguous ntag x ntag block per word, so that a
+   * lattice step, which fixes the word, reads from a single block */
+  private final double[] arc;
+
+  /** The same table not in log space, kept only when asked for */
+  private double[] arcP = null;
   final HMM backoffHmm;
-  final double[][] oovProb;
+  final double[][] oovArc;
   private final double param;
+  private final int ntag, nterm;
+
+  private CombinedProb(
+      final int _ntag,
+      final int _nterm,
+      final HMM _backoffHmm,
+      final double smoothParam) {
+    this(_ntag, _nterm, new double[_ntag * _ntag * _nterm], _backoffHmm,
+        smoothParam);
+  }
 
   private CombinedProb(
-      final double[][][] _prob,
-      final double[][] _oovP,
+      final int _ntag,
+      final int _nterm,
+      final double[] _arc,
       final HMM _backoffHmm,
       final double smoothParam) {
-    prob = _prob;
-    oovProb = _oovP;
+    ntag = _ntag;
+    nterm = _nterm;
+    arc = _arc;
+    oovArc = new double[ntag][ntag];
     backoffHmm = _backoffHmm;
     param = smoothParam;
   }
 
   public int numTags() {
-    return prob.length;
+    return ntag;
   }
   
   public int numTerms() {
-    return prob[0][0].length;
+    return nterm;
   }
   
+  private int index(final int t1, final int w, final int t2) {
+    return (w * ntag + t1) * ntag + t2;
+  }
+
   public double arcprob(final int t1, final int w, final int t2) {
     if (w >= numTerms()) 
-      return log(oovProb[t1][t2] * backoffHmm.nonLogTrans(t1,t2));
+      return oovArc[t1][t2];
     
     else
-      return log(prob[t1][t2][w] * backoffHmm.nonLogTrans(t1, t2));
+      return arc[index(t1, w, t2)];
+  }
+
+  public double nonLogArcprob(final int t1, final int w, final int t2) {
+    if (arcP == null || w >= numTerms())
+      return exp(arcprob(t1, w, t2));
+
+    else
+      return arcP[index(t1, w, t2)];
+  }
+
+  /**
+   * Keep (or stop keeping) a table of arc probabilities that are not in log
+   * space, for forward-backward in linear space
+   */
+  public void setKeepNonLogArcs(final boolean keep) {
+    if (!keep)
+      arcP = null;
+    else if (arcP == null) {
+      arcP = new double[arc.length];
+      setNonLogArcs();
+    }
+  }
+
+  private void setNonLogArcs() {
+    for (int i = 0; i < arc.length; i++)
+      arcP[i] = exp(arc[i]);
   }
 
   /**
@@ -50,91 +100,130 @@ public class CombinedProb {
     return backoffHmm.emiss.getProb(t, i);
   }
 
+  /** Write the arc tables; the backoff HMM is written separately */
+  void write(final ModelFile.Writer out) throws IOException {
+    out.writeInt(ntag);
+    out.writeInt(nterm);
+    out.writeDouble(param);
+    out.writeDoubles(arc);
+    for (final double[] row : oovArc)
+      out.writeDoubles(row);
+  }
+
+  static CombinedProb read(final ModelFile.Reader in, final HMM backoffHmm)
+      throws IOException {
+    final int ntag = in.readInt(), nterm = in.readInt();
+    final double param = in.readDouble();
+    final CombinedProb c = new CombinedProb(ntag, nterm,
+        in.readDoubles(ntag * ntag * nterm), backoffHmm, param);
+    for (int t = 0; t < ntag; t++)
+      c.oovArc[t] = in.readDoubles(ntag);
+    return c;
+  }
+
   public static CombinedProb fromCounts(
-      double[][][] countsD, final HMM backoffHmm, final double smooth) {
+      final ArcCounts counts, final HMM backoffHmm, final double smooth) {
     
-    final int ntag = countsD.length, nterm = countsD[0].length;
-    final double[][][] prob = new double[ntag][ntag][nterm];
-    final double[][] oovP = new double[ntag][ntag];
-    final CombinedProb c = new CombinedProb(prob, oovP, backoffHmm, smooth);
-    c.update(countsD);
+    final CombinedProb c = new CombinedProb(
+        counts.numTags(), counts.numTerms(), backoffHmm, smooth);
+    c.update(counts);
     return c;
   }
 
   /**
-   * Update the probability distribution using these tag-term-tag counts
+   * Update the probability distribution using these tag-term-tag counts, 
+   * and rebuild the log arc table from it and the backoff transitions
    */
-  public void update(double[][][] counts) {
+  public void update(final ArcCounts counts) {
     backoffHmm.update(counts);
-    double[][][] _counts = switcheroo(counts);
+    final double[][] sum = counts.transitionCounts();
+    final double[][] trans = new double[ntag][ntag];
+    final double[] unseen = updateNormalizers(sum, 1, trans);
+
+    for (int w = 0; w < numTerms(); w++)
+      updateRow(w, counts, 1, sum, trans, unseen);
+
+    if (arcP != null)
+      setNonLogArcs();
+  }
+
+  /**
+   * Re-estimate the arcs for the words <code>words</code> only, as
+   * {@link #update(ArcCounts)} would from the stepwise EM statistics
+   * <code>counts</code>. The arcs for other words are out of date until the
+   * next full update.
+   */
+  void updateRows(final StepwiseCounts counts, final int[] words) {
+    backoffHmm.updateRows(counts, words);
+    final double mult = counts.multiplier();
+    final double[][] sum = counts.transitionCounts();
+    final double[][] trans = new double[ntag][ntag];
+    final double[] unseen = updateNormalizers(sum, mult, trans);
+
+    for (final int w : words) {
+      updateRow(w, counts.counts(), mult, sum, trans, unseen);
+      if (arcP != null)
+        for (int i = index(0, w, 0); i < index(0, w + 1, 0); i++)
+          arcP[i] = exp(arc[i]);
+    }
+  }
+
+  /**
+   * Fill in <code>trans</code> from the backoff model and set the arcs for
+   * unknown words, given the tag pair totals <code>mult * sum</code>
+   * 
+   * @return the arcs for a word with no count for any tag pair
+   */
+  private double[] updateNormalizers(final double[][] sum, final double mult,
+      final double[][] trans) {
     final int n = numTags();
     final double v = param * numTerms();
+    final double[] unseen = new double[n * n];
     for (int s = 0; s < n; s++) {
       for (int t = 0; t < n; t++) {
-        double sum = sum(_counts[s][t]);
-        oovProb[s][t] = param/sum;
-        for (int w = 0; w < numTerms(); w++)
-          prob[s][t][w] = (_counts[s][t][w] + param) / (sum + v);
+        trans[s][t] = backoffHmm.nonLogTrans(s, t);
+        oovArc[s][t] = log(param/(mult * sum[s][t]) * trans[s][t]);
+        unseen[s * n + t] = 
+          log(param / (mult * sum[s][t] + v) * trans[s][t]);
       }
     }
+    return unseen;
   }
 
-  private static double[][][] switcheroo(final double[][][] counts) {
-    int ntag = counts.length;
-    int nterm = counts[0].length;
-    final double[][][] switched = new double[ntag][ntag][nterm];
-    for (int t1 = 0; t1 < ntag; t1++)
-      for (int t2 = 0; t2 < ntag; t2++)
-        for (int w = 0; w < nterm; w++)
-          switched[t1][t2][w] = counts[t1][w][t2];
-    return switched;
-  }
-
-  public void checkSanity() {
-    backoffHmm.checkSanity();
-    int ntag = numTags(), nterm = numTerms();
-    for (int t1 = 0; t1 < ntag; t1++) {
-      for (int t2 = 0; t2 < ntag; t2++) {
-        double s = sum(prob[t1][t2]);
-        assert abs(s-1) < 1e-5 : s;
+  /** Set the arcs for word <code>w</code> from <code>mult</code> times the
+   * counts */
+  private void updateRow(final int w, final ArcCounts counts,
+      final double mult, final double[][] sum, final double[][] trans,
+      final double[] unseen) {
+    final double v = param * numTerms();
+    System.arraycopy(unseen, 0, arc, index(0, w, 0), unseen.length);
+    for (int r = 0; r < counts.numRows(w); r++) {
+      final int s = counts.rowTag(w, r);
+      final int[] succ = counts.successors(s);
+      for (int i = 0; i < succ.length; i++) {
+        final int t = succ[i];
+        final double p = (mult * counts.rowValue(w, r, i) + param)
+            / (mult * sum[s][t] + v);
+        arc[index(s, w, t)] = log(p * trans[s][t]);
       }
     }
-    for (int t1 = 0; t1 < ntag; t1++) {
-      double sum = 0;
-      for (int w = 0; w < nterm; w++) 
-        for (int t2 = 0; t2 < ntag; t2++) {
-          sum += exp(arcprob(t1, w, t2));
-          assert !Double.isNaN(sum);
-        }
-      assert abs(sum-1) < 1e-5 : sum;
-    }
   }
 
   /**
-   * Creates a combined probability store directly from an array of log-
-   * probabilities
-   * @param prob The array of NxNxV log probabilities, where N = number of tags 
-   * and V = vocabulary size
-   * @param hmm The HMM used for transition probabilities
-   * @param smooth The smoothing parameter for these probabilities
-   * @return A new combined probability store
+   * Check that the arcs for each tag pair add up to the backoff transition.
+   * The arcs from each tag are checked to sum to one by the model.
    */
-  public static CombinedProb fromProb(
-      double[][][] prob, HMM hmm, double smooth) {
-    // convert the log probs to non-log
-    double[][][] nlProb = 
-      new double[prob.length][prob[0][0].length][prob[0].length];
-    for (int x1 = 0; x1 < prob.length; x1++) {
-      for (int x2 = 0; x2 < prob[x1].length; x2++) {
-        for (int x3 = 0; x3 < prob[x1][x2].length; x3++) {
-          nlProb[x1][x3][x2] = Math.exp(prob[x1][x2][x3]);
-        }
-      }
+  public void checkSanity() {
+    backoffHmm.checkSanity();
+    final int ntag = numTags(), nterm = numTerms();
+    for (final int r : SequenceModel.getValidationLevel().rows(ntag * ntag)) {
+      final int t1 = r / ntag, t2 = r % ntag;
+      double s = 0;
+      for (int w = 0; w < nterm; w++)
+        s += exp(arc[index(t1, w, t2)]);
+      final double tr = backoffHmm.nonLogTrans(t1, t2);
+      ValidationLevel.check(abs(s - tr) < 1e-5, "arcs from tag " + t1
+          + " to " + t2 + " sum to " + s + ", not " + tr);
     }
-
-    // Now, the fromCounts method should actually work.
-    // This is stupid: to do this I need to switch around the probs, 
-    // even though they're about to be switched back around.
-    return fromCounts(nlProb, hmm, smooth);
   }
 }
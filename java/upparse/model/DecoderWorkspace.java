@@ -0,0 +1,35 @@
+package upparse.model;
+
+import java.util.*;
+
+/**
+ * Buffers for Viterbi decoding with a {@link SequenceModel}, reused from one
+ * call to the next so that decoding does not allocate in its inner loop.
+ * Buffers only grow. A workspace is not thread-safe: give each decoding
+ * thread its own.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public final class DecoderWorkspace {
+
+  /** Viterbi scores and backpointers, <code>ntag</code> cells per token */
+  double[] viterbi = new double[0];
+  int[] backpointer = new int[0];
+
+  /** Index of each tag among the tags of the previous token, or -1 */
+  int[] pos = new int[0];
+
+  /** Make sure there is room for <code>ndata</code> tokens */
+  void ensureCapacity(final int ndata, final int ntag) {
+    final int n = ndata * ntag;
+    if (n > viterbi.length) {
+      final int size = Math.max(n, 2 * viterbi.length);
+      viterbi = new double[size];
+      backpointer = new int[size];
+    }
+    if (ntag > pos.length) {
+      pos = new int[ntag];
+      Arrays.fill(pos, -1);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import static java.lang.Math.*;
 import static upparse.util.Util.*;
 import static java.lang.Double.*;
 
+import java.io.*;
 import java.util.*;
 
 import upparse.util.*;
@@ -14,29 +15,64 @@ import upparse.util.*;
  */
 public class EmissionProbs {
   
-  private final double[][] emiss;
+  /** Log emission probabilities, word-major: one block of numTags() 
+   * entries per word */
+  private final double[] emiss;
+
+  /** The same probabilities, not in log space */
+  private final double[] emissP;
+  private final int ntag, nterm;
   private double defaultProb;
-  private double nvocab;
   private final Ipredicate isStop;
   private final double smoothParam;
 
-  public EmissionProbs(
-      final double[][] _emiss, 
+  private EmissionProbs(
+      final int _ntag,
+      final int _nterm,
       final Ipredicate _isStop, 
       final double _smoothParam) {
+    this(_ntag, _nterm, new double[_ntag * _nterm], _isStop, _smoothParam);
+  }
+
+  private EmissionProbs(
+      final int _ntag,
+      final int _nterm,
+      final double[] _emiss,
+      final Ipredicate _isStop, 
+      final double _smoothParam) {
+    ntag = _ntag;
+    nterm = _nterm;
     emiss = _emiss;
-    nvocab = emiss[0].length;
-    defaultProb = log(1./nvocab);
+    emissP = new double[ntag * nterm];
+    defaultProb = log(1./nterm);
     isStop = _isStop;
     smoothParam = _smoothParam;
   }
 
+  /**
+   * @param _emiss Log emission probabilities indexed by [tag][term]
+   */
+  public EmissionProbs(
+      final double[][] _emiss, 
+      final Ipredicate _isStop, 
+      final double _smoothParam) {
+    this(_emiss.length, _emiss[0].length, _isStop, _smoothParam);
+    for (int t = 0; t < ntag; t++)
+      for (int w = 0; w < nterm; w++)
+        emiss[index(t, w)] = _emiss[t][w];
+    setNonLogProbs();
+  }
+
   public int numTags() {
-    return emiss.length;
+    return ntag;
   }
 
   public int numTerms() {
-    return emiss[0].length;
+    return nterm;
+  }
+
+  private int index(final int t, final int w) {
+    return w * ntag + t;
   }
 
   /**
@@ -48,10 +84,27 @@ public class EmissionProbs {
     if (w >= numTerms())
       return isStop.pred(t) ? NEGATIVE_INFINITY : defaultProb;
     
-    return emiss[t][w];
+    return emiss[index(t, w)];
+  }
+
+  /** @return The probability state t emits w, not in log space */
+  public double getNonLogProb(final int t, final int w) {
+    if (w >= numTerms())
+      return exp(getProb(t, w));
+
+    return emissP[index(t, w)];
   }
 
-  public void update(double[][] emissCount) {
+  private void setNonLogProbs() {
+    for (int i = 0; i < emiss.length; i++)
+      emissP[i] = exp(emiss[i]);
+  }
+
+  public void update(final ArcCounts counts) {
+    update(counts.emissionCounts());
+  }
+
+  private void update(double[][] emissCount) {
     
     final int 
       ntags = numTags(), 
@@ -97,36 +150,91 @@ public class EmissionProbs {
     for (int t: stopStates) {
       final double sum = log(sum(emissCount[t]));
       for (int w: stopTerms)
-        emiss[t][w] = log(emissCount[t][w]) - sum;
+        emiss[index(t, w)] = log(emissCount[t][w]) - sum;
       
       for (int w: nonStopTerms)
-        emiss[t][w] = NEGATIVE_INFINITY;
+        emiss[index(t, w)] = NEGATIVE_INFINITY;
     }
     
     final double nvocab = (double) numNonStopTerms;
     for (int t: nonStopStates) {
       final double sum = log(sum(emissCount[t]) + smoothParam * nvocab);
       for (int w: nonStopTerms)
-        emiss[t][w] = log(emissCount[t][w] + smoothParam) - sum;
+        emiss[index(t, w)] = log(emissCount[t][w] + smoothParam) - sum;
       
       for (int w: stopTerms)
-        emiss[t][w] = NEGATIVE_INFINITY;
+        emiss[index(t, w)] = NEGATIVE_INFINITY;
     }
     
     defaultProb = log(1/nvocab);
+    setNonLogProbs();
   }
-  
+
+  /**
+   * Re-estimate the probabilities of the words <code>words</code> only, as
+   * {@link #update(ArcCounts)} would from the stepwise EM statistics
+   * <code>counts</code>. Smoothing makes every probability depend on the
+   * statistics for all words, so the rest are out of date until the next
+   * full update.
+   */
+  void updateRows(final StepwiseCounts counts, final int[] words) {
+    final double mult = counts.multiplier();
+    final double[][] trans = counts.transitionCounts();
+    final double nvocab = (double) (numTerms() - counts.numStopTerms());
+
+    final double[] logSum = new double[ntag];
+    for (int t = 0; t < ntag; t++)
+      logSum[t] = isStop.pred(t) ? log(sum(trans[t]))
+          : log(mult * sum(trans[t]) + smoothParam * nvocab);
+
+    final double[] emissCount = new double[ntag];
+    for (final int w : words) {
+      counts.counts().emissionCounts(w, emissCount);
+      final boolean isStopTerm = counts.isStopTerm(w);
+      for (int t = 0; t < ntag; t++) {
+        final int i = index(t, w);
+        if (isStop.pred(t) != isStopTerm)
+          emiss[i] = NEGATIVE_INFINITY;
+        else if (isStopTerm)
+          emiss[i] = log(emissCount[t]) - logSum[t];
+        else
+          emiss[i] = log(mult * emissCount[t] + smoothParam) - logSum[t];
+        emissP[i] = exp(emiss[i]);
+      }
+    }
+
+    defaultProb = log(1/nvocab);
+  }
+
+  void write(final ModelFile.Writer out) throws IOException {
+    out.writeInt(ntag);
+    out.writeInt(nterm);
+    out.writeDouble(smoothParam);
+    out.writeDouble(defaultProb);
+    out.writeDoubles(emiss);
+  }
+
+  static EmissionProbs read(final ModelFile.Reader in, 
+      final Ipredicate isStop) throws IOException {
+    final int ntag = in.readInt(), nterm = in.readInt();
+    final double smoothParam = in.readDouble(), defaultProb = in.readDouble();
+    final EmissionProbs e = new EmissionProbs(ntag, nterm, 
+        in.readDoubles(ntag * nterm), isStop, smoothParam);
+    e.defaultProb = defaultProb;
+    e.setNonLogProbs();
+    return e;
+  }
+
   public static EmissionProbs directFromProbs(
       final double[][] probs, Ipredicate isStop, double smoothParam) {
     return new EmissionProbs(probs, isStop, smoothParam);
   }
 
   public static EmissionProbs fromCounts(
-      final double[][] emissCount, Ipredicate isStop, double smoothParam) {
-    final int m = emissCount.length, n = emissCount[0].length;
-    final EmissionProbs e = 
-      new EmissionProbs(new double[m][n], isStop, smoothParam);
-    e.update(emissCount);
+      final ArcCounts counts, Ipredicate isStop, double smoothParam) {
+    final EmissionProbs e = new EmissionProbs(
+        counts.numTags(), counts.numTerms(), isStop, smoothParam);
+    e.update(counts);
     return e;
   }
 }
@@ -0,0 +1,9 @@
+package upparse.model;
+
+/**
+ * Forward-backward algorithms for EM: sums of log probabilities, or
+ * probabilities rescaled at each position
+ * 
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public enum ForwardBackwardType { LOG, SCALED; }
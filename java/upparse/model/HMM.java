@@ -1,6 +1,9 @@
 package upparse.model;
 
 import static java.lang.Math.*;
+
+import java.io.*;
+
 import upparse.corpus.*;
 import upparse.util.*;
 
@@ -13,14 +16,18 @@ public class HMM extends SequenceModel {
 
   EmissionProbs emiss;
   double[][] trans;
+  private final double[][] transP;
   private double[] initTag;
 
   private HMM(final TagEncoder _encoder, final int[] _tokens,
       final EmissionProbs _emiss, final double[][] _trans,
       final double[] _initTag) {
-    super(_encoder, _tokens, new int[_emiss.numTerms()][]);
+    super(_encoder, _tokens,
+        new TagDict(_emiss.numTerms(), _emiss.numTags()));
     emiss = _emiss;
     trans = _trans;
+    transP = new double[trans.length][trans.length];
+    setNonLogTrans();
     initTag = _initTag;
     updateTagDict();
     checkSanity();
@@ -38,28 +45,34 @@ public class HMM extends SequenceModel {
   }
 
   @Override
-  public void update(final double[][][] counts) {
-    final int ntag = counts.length;
-    final int nterm = counts[0].length;
+  public double nonLogArcprob(int j, int w, int k) {
+    return transP[j][k] * emiss.getNonLogProb(j, w);
+  }
+
+  @Override
+  public void update(final ArcCounts counts) {
+    final int ntag = counts.numTags();
 
     assert ntag == numTags();
-    assert nterm == numTerms();
+    assert counts.numTerms() == numTerms();
 
     // update emission counts
-    final double[][] emissCnt = new double[ntag][nterm];
-    for (int t = 0; t < ntag; t++)
-      for (int w = 0; w < nterm; w++)
-        for (int _t = 0; _t < ntag; _t++)
-          emissCnt[t][w] += counts[t][w][_t];
-    emiss.update(emissCnt);
+    emiss.update(counts);
 
     // update transition counts
-    final double[][] transCount = new double[ntag][ntag];
-    for (int t = 0; t < ntag; t++)
-      for (int w = 0; w < nterm; w++)
-        for (int _t = 0; _t < ntag; _t++)
-          transCount[t][_t] += counts[t][w][_t];
+    updateTrans(counts.transitionCounts());
+  }
 
+  /** Transitions do not depend on the count for any one word, so these are
+   * re-estimated in full along with the emissions for the words given */
+  @Override
+  void updateRows(final StepwiseCounts counts, final int[] words) {
+    emiss.updateRows(counts, words);
+    updateTrans(counts.transitionCounts());
+  }
+
+  private void updateTrans(final double[][] transCount) {
+    final int ntag = numTags();
     for (int j = 0; j < ntag; j++) {
       final double sum = log(Util.sum(transCount[j]));
       for (int k = 0; k < ntag; k++) {
@@ -67,6 +80,24 @@ public class HMM extends SequenceModel {
         assert !Double.isNaN(trans[j][k]);
       }
     }
+    setNonLogTrans();
+  }
+
+  /** Also rules out tag pairs never seen in training */
+  @Override
+  protected boolean[][] arcConstraints() {
+    final boolean[][] constraints = super.arcConstraints();
+    final boolean[][] c = new boolean[trans.length][trans.length];
+    for (int j = 0; j < trans.length; j++)
+      for (int k = 0; k < trans.length; k++)
+        c[j][k] = constraints[j][k] || trans[j][k] == Double.NEGATIVE_INFINITY;
+    return c;
+  }
+
+  private void setNonLogTrans() {
+    for (int j = 0; j < trans.length; j++)
+      for (int k = 0; k < trans.length; k++)
+        transP[j][k] = exp(trans[j][k]);
   }
 
   @Override
@@ -86,21 +117,21 @@ public class HMM extends SequenceModel {
 
   @Override
   public void checkSanity() {
-    for (int i = 0; i < emiss.numTags(); i++) {
-      double s = 0, p;
-      for (int j = 0; j < emiss.numTerms(); j++) {
-        p = emiss.getProb(i, j);
-        assert !Double.isNaN(p);
-        s += Math.exp(p);
-      }
-      assert abs(s - 1) < 1e-5;
+    final ValidationLevel level = getValidationLevel();
+    for (final int i : level.rows(emiss.numTags())) {
+      double s = 0;
+      for (int j = 0; j < emiss.numTerms(); j++)
+        s += Math.exp(emiss.getProb(i, j));
+      ValidationLevel.check(ValidationLevel.sumsToOne(s),
+          "emissions from tag " + i + " sum to " + s);
     }
 
-    for (int i = 0; i < trans.length; i++) {
+    for (final int i : level.rows(trans.length)) {
       double s = 0.;
       for (int j = 0; j < trans[i].length; j++)
         s += exp(trans[i][j]);
-      assert abs(s - 1) < 1e-5;
+      ValidationLevel.check(ValidationLevel.sumsToOne(s),
+          "transitions from tag " + i + " sum to " + s);
     }
 
     super.checkSanity();
@@ -149,7 +180,7 @@ public class HMM extends SequenceModel {
       final double smoothParam) 
   {
     final int[] tokens = encoder.tokensFromStopSegmentCorpus(corpus);
-    final double[][][] counts = encoder.softCounts(tokens);
+    final ArcCounts counts = encoder.softCounts(tokens);
     return fromCounts(counts, encoder, tokens, smoothParam);
   }
 
@@ -174,31 +205,44 @@ public class HMM extends SequenceModel {
     return new HMM(encoder, tokens, emiss, trans, initTag);
   }
 
-  public static HMM fromCounts(final double[][][] counts,
+  public static HMM fromCounts(final ArcCounts counts,
       final TagEncoder encoder, final int[] tokens, final double smoothParam) {
 
-    assert counts.length != 0;
-    final int nTag = encoder.numTags(), nTerm = counts[0].length;
-    assert counts.length == nTag;
-    double[][] emissCount = new double[nTag][nTerm];
-    double[][] transCount = new double[nTag][nTag];
-    for (int t = 0; t < nTag; t++)
-      for (int w = 0; w < nTerm; w++)
-        for (int _t = 0; _t < nTag; _t++) {
-          final double c = counts[t][w][_t];
-          transCount[t][_t] += c;
-          emissCount[t][w] += c;
-        }
+    assert counts.numTags() == encoder.numTags();
 
     final double[] initTag = logs(encoder.getInitTagProb());
-    final EmissionProbs emiss = EmissionProbs.fromCounts(emissCount,
+    final EmissionProbs emiss = EmissionProbs.fromCounts(counts,
         encoder.isStopPred(), smoothParam);
-    final double[][] trans = getTrans(transCount);
+    final double[][] trans = getTrans(counts.transitionCounts());
 
     return new HMM(encoder, tokens, emiss, trans, initTag);
   }
 
+  @Override
+  public SequenceModelType getType() {
+    return SequenceModelType.HMM;
+  }
+
+  @Override
+  protected void writeParams(final ModelFile.Writer out) throws IOException {
+    out.writeDoubles(initTag);
+    for (final double[] row : trans)
+      out.writeDoubles(row);
+    emiss.write(out);
+  }
+
+  static HMM readParams(final ModelFile.Reader in, final TagEncoder encoder)
+      throws IOException {
+    final double[] initTag = in.readDoubles();
+    final int ntag = initTag.length;
+    final double[][] trans = new double[ntag][];
+    for (int j = 0; j < ntag; j++)
+      trans[j] = in.readDoubles(ntag);
+    final EmissionProbs emiss = EmissionProbs.read(in, encoder.isStopPred());
+    return new HMM(encoder, new int[0], emiss, trans, initTag);
+  }
+
   protected double nonLogTrans(int t1, int t2) {
-    return exp(trans[t1][t2]);
+    return transP[t1][t2];
   }
 }
@@ -23,4 +23,14 @@ public final class MaxVals {
         v = t[i];
     return v;
   }
+
+  /** @return the largest value in any of the arrays, or -1 if all are 
+   * empty */
+  public static int arrayMax(Iterable<int[]> ts) {
+    int v = -1;
+    for (int[] t: ts)
+      if (t.length > 0)
+        v = Math.max(v, arrayMax(t));
+    return v;
+  }
 }
\ No newline at end of file
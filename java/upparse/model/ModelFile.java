@@ -0,0 +1,204 @@
+package upparse.model;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/**
+ * Binary file format for saved sequence models. Numbers are written in
+ * big-endian order, arrays as a length followed by their elements. Files are
+ * written through a buffer and read back through memory-mapped windows, so
+ * that parameter tables are copied in bulk.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+final class ModelFile {
+
+  /** "UPPM" */
+  static final int MAGIC = 0x5550504d;
+  static final int VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ModelFile() { }
+
+  static final class Writer implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+
+    Writer(final String filename) throws IOException {
+      channel = new FileOutputStream(filename).getChannel();
+    }
+
+    private void ensure(final int n) throws IOException {
+      if (buf.remaining() < n)
+        flush();
+    }
+
+    private void flush() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining())
+        channel.write(buf);
+      buf.clear();
+    }
+
+    void writeInt(final int i) throws IOException {
+      ensure(4);
+      buf.putInt(i);
+    }
+
+    void writeDouble(final double d) throws IOException {
+      ensure(8);
+      buf.putDouble(d);
+    }
+
+    void writeString(final String s) throws IOException {
+      writeBytes(s.getBytes(UTF8));
+    }
+
+    private void writeBytes(final byte[] b) throws IOException {
+      writeInt(b.length);
+      int i = 0;
+      while (i < b.length) {
+        ensure(1);
+        final int n = Math.min(buf.remaining(), b.length - i);
+        buf.put(b, i, n);
+        i += n;
+      }
+    }
+
+    void writeInts(final int[] a) throws IOException {
+      writeInt(a.length);
+      int i = 0;
+      while (i < a.length) {
+        ensure(4);
+        final int n = Math.min(buf.remaining() / 4, a.length - i);
+        buf.asIntBuffer().put(a, i, n);
+        buf.position(buf.position() + 4 * n);
+        i += n;
+      }
+    }
+
+    void writeDoubles(final double[] a) throws IOException {
+      writeInt(a.length);
+      int i = 0;
+      while (i < a.length) {
+        ensure(8);
+        final int n = Math.min(buf.remaining() / 8, a.length - i);
+        buf.asDoubleBuffer().put(a, i, n);
+        buf.position(buf.position() + 8 * n);
+        i += n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      channel.close();
+    }
+  }
+
+  static final class Reader implements Closeable {
+
+    /** Largest stretch of the file mapped at once */
+    private static final long WINDOW = 1L << 28;
+
+    private final FileChannel channel;
+    private final long size;
+    private long offset = 0;
+    private MappedByteBuffer buf;
+
+    Reader(final String filename) throws IOException {
+      channel = new FileInputStream(filename).getChannel();
+      size = channel.size();
+      map(0);
+    }
+
+    private void map(final long pos) throws IOException {
+      offset = pos;
+      buf = channel.map(
+          FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+    }
+
+    /** Make sure at least <code>n</code> bytes are mapped, if the file has
+     * them */
+    private void ensure(final int n) throws IOException {
+      if (buf.remaining() < n) {
+        final long pos = offset + buf.position();
+        if (size - pos < n)
+          throw new EOFException("Truncated model file");
+        map(pos);
+      }
+    }
+
+    int readInt() throws IOException {
+      ensure(4);
+      return buf.getInt();
+    }
+
+    double readDouble() throws IOException {
+      ensure(8);
+      return buf.getDouble();
+    }
+
+    String readString() throws IOException {
+      final byte[] b = new byte[readLength()];
+      int i = 0;
+      while (i < b.length) {
+        ensure(1);
+        final int n = Math.min(buf.remaining(), b.length - i);
+        buf.get(b, i, n);
+        i += n;
+      }
+      return new String(b, UTF8);
+    }
+
+    int[] readInts() throws IOException {
+      final int[] a = new int[readLength()];
+      int i = 0;
+      while (i < a.length) {
+        ensure(4);
+        final int n = Math.min(buf.remaining() / 4, a.length - i);
+        buf.asIntBuffer().get(a, i, n);
+        buf.position(buf.position() + 4 * n);
+        i += n;
+      }
+      return a;
+    }
+
+    double[] readDoubles() throws IOException {
+      final double[] a = new double[readLength()];
+      int i = 0;
+      while (i < a.length) {
+        ensure(8);
+        final int n = Math.min(buf.remaining() / 8, a.length - i);
+        buf.asDoubleBuffer().get(a, i, n);
+        buf.position(buf.position() + 8 * n);
+        i += n;
+      }
+      return a;
+    }
+
+    /** Read an array of <code>n</code> doubles */
+    double[] readDoubles(final int n) throws IOException {
+      final double[] a = readDoubles();
+      if (a.length != n)
+        throw new IOException("Unexpected array length in model file");
+      return a;
+    }
+
+    private int readLength() throws IOException {
+      final int n = readInt();
+      if (n < 0)
+        throw new IOException("Corrupt model file");
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package upparse.model;
 
+import java.io.*;
+
 import upparse.corpus.*;
 
 /**
@@ -14,7 +16,8 @@ public class RRG extends SequenceModel {
 
   private RRG(final TagEncoder _encoder, final int[] _orig,
       final CombinedProb _combinedProb) {
-    super(_encoder, _orig, new int[_combinedProb.numTerms()][]);
+    // the emissions are the backoff model's, and so are the tags of each word
+    super(_encoder, _orig, _combinedProb.backoffHmm.tagDict());
     combinedP = _combinedProb;
     updateTagDict();
     checkSanity();
@@ -26,10 +29,10 @@ public class RRG extends SequenceModel {
     super.checkSanity();
   }
 
+  /** Arcs are zero wherever the backoff transitions are */
   @Override
-  public void updateTagDict() {
-    combinedP.backoffHmm.updateTagDict();
-    super.updateTagDict();
+  protected boolean[][] arcConstraints() {
+    return combinedP.backoffHmm.arcConstraints();
   }
 
   @Override
@@ -38,10 +41,25 @@ public class RRG extends SequenceModel {
   }
 
   @Override
-  public void update(double[][][] counts) {
+  public double nonLogArcprob(int j, int w, int k) {
+    return combinedP.nonLogArcprob(j, w, k);
+  }
+
+  @Override
+  protected void keepNonLogArcs(final boolean keep) {
+    combinedP.setKeepNonLogArcs(keep);
+  }
+
+  @Override
+  public void update(ArcCounts counts) {
     combinedP.update(counts);
   }
 
+  @Override
+  void updateRows(final StepwiseCounts counts, final int[] words) {
+    combinedP.updateRows(counts, words);
+  }
+
   @Override
   public int numTags() {
     return combinedP.numTags();
@@ -62,6 +80,23 @@ public class RRG extends SequenceModel {
     return combinedP.backoffHmm.termProb(tag, term);
   }
 
+  @Override
+  public SequenceModelType getType() {
+    return SequenceModelType.PRLG;
+  }
+
+  @Override
+  protected void writeParams(final ModelFile.Writer out) throws IOException {
+    combinedP.backoffHmm.writeParams(out);
+    combinedP.write(out);
+  }
+
+  static RRG readParams(final ModelFile.Reader in, final TagEncoder encoder)
+      throws IOException {
+    final HMM backoff = HMM.readParams(in, encoder);
+    return new RRG(encoder, new int[0], CombinedProb.read(in, backoff));
+  }
+
   /**
    * @param corpus
    *          Corpus output by a separate model
@@ -73,12 +108,12 @@ public class RRG extends SequenceModel {
    */
   public static RRG mleEstimate(final ChunkedSegmentedCorpus corpus,
       final TagEncoder encoder, final double smooth) throws EncoderError {
-    final double[][][] counts = encoder.hardCounts(corpus);
+    final ArcCounts counts = encoder.hardCounts(corpus);
     final int[] tokens = encoder.tokensFromClumpedCorpus(corpus);
     return fromCounts(counts, encoder, tokens, smooth);
   }
 
-  public static RRG fromCounts(double[][][] counts, TagEncoder encoder,
+  public static RRG fromCounts(ArcCounts counts, TagEncoder encoder,
       int[] tokens, double smooth) {
     final HMM backoff = HMM.fromCounts(counts, encoder, tokens, smooth);
     final CombinedProb combined = CombinedProb.fromCounts(counts, backoff,
@@ -89,28 +124,28 @@ public class RRG extends SequenceModel {
   public static SequenceModel softCountEstimate(StopSegmentCorpus corpus,
       TagEncoder encoder, double smooth) {
     final int[] tokens = encoder.tokensFromStopSegmentCorpus(corpus);
-    final double[][][] counts = encoder.softCounts(tokens);
+    final ArcCounts counts = encoder.softCounts(tokens);
     return fromCounts(counts, encoder, tokens, smooth);
   }
 
-  private static SequenceModel fromProbs(final double[][][] prob,
+  private static SequenceModel fromProbs(final ArcCounts prob,
       final StopSegmentCorpus corpus, final HMM hmm, final TagEncoder encoder,
       final double smooth) {
     final int[] tokens = encoder.tokensFromStopSegmentCorpus(corpus);
-    final CombinedProb cp = CombinedProb.fromProb(prob, hmm, smooth);
+    final CombinedProb cp = CombinedProb.fromCounts(prob, hmm, smooth);
     return new RRG(encoder, tokens, cp);
   }
 
   public static SequenceModel uniformEstimate(final StopSegmentCorpus corpus,
       final TagEncoder encoder, final double smooth) {
-    final double[][][] prob = encoder.altUniformJoint(corpus.getAlpha().size());
+    final ArcCounts prob = encoder.altUniformJoint(corpus.getAlpha().size());
     final HMM hmm = HMM.uniformEstimate(corpus, encoder, smooth);
     return fromProbs(prob, corpus, hmm, encoder, smooth);
   }
 
   public static SequenceModel randomEstimate(final StopSegmentCorpus corpus,
       TagEncoder encoder, double smooth) {
-    final double[][][] prob = encoder.randomJoint(corpus.getAlpha().size());
+    final ArcCounts prob = encoder.randomJoint(corpus.getAlpha().size());
     final HMM hmm = HMM.randomEstimate(corpus, encoder, smooth);
     return fromProbs(prob, corpus, hmm, encoder, smooth);
   }
@@ -2,6 +2,11 @@ package upparse.model;
 
 import static java.lang.Math.*;
 import static java.util.Arrays.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
 import upparse.corpus.*;
 import upparse.util.*;
 
@@ -13,13 +18,40 @@ public abstract class SequenceModel {
   private final int[] orig;
   private final TagEncoder encoder;
   private double perplex = -1;
-  private int[][] tagdict;
+  private final TagDict tagdict;
+  private final int[] oovTags;
+
+  /**
+   * Tags that may follow each tag, and tags that may precede each tag, in
+   * order. The lattice recursions only visit these arcs, so their cost grows
+   * with the number of legal tag pairs rather than the square of the tagset.
+   */
+  private int[][] succ, pred;
+  private int numThreads = 1;
+  private WorkerPool pool = null;
+  private ForwardBackwardType fbType = ForwardBackwardType.LOG;
+  private Lattice lattice = null;
 
-  public SequenceModel(final TagEncoder _encoder, final int[] _orig,
-      final int[][] _tagdict) {
+  /** Training data read a piece at a time, used by EM in place of orig */
+  private Iterable<int[]> trainStream = null;
+
+  private static volatile ValidationLevel validation = ValidationLevel.SAMPLED;
+
+  /** Stepwise EM mini-batch size in sentences, or 0 for batch EM */
+  private int stepBatch = 0;
+  private double stepDecay = 1;
+
+  /** Stepwise EM statistics, number of steps taken, and tokens per pass */
+  private StepwiseCounts stepCounts = null;
+  private int steps = 0;
+  private long passTokens = 0;
+
+  SequenceModel(final TagEncoder _encoder, final int[] _orig,
+      final TagDict _tagdict) {
     encoder = _encoder;
     orig = _orig;
     tagdict = _tagdict;
+    oovTags = encoder.allNonStopTags();
   }
 
   /** Tag the corpus, return structured corpus */
@@ -39,94 +71,745 @@ public abstract class SequenceModel {
 
   /** Update model using (new) data */
   public final void emUpdateFrom(final int[] data) {
-    int ndata = data.length, last = ndata - 1, ntag = numTags(), nvocab = numTerms();
+    final ArcCounts counts = newCounts();
+    final double forwTotal = expectedCounts(data, true, true, counts);
+
+    update(counts);
+
+    updateTagDict();
+    checkSanity();
+
+    // Get perplexity
+    setPerplex(exp(-forwTotal / data.length));
+  }
+
+  /**
+   * Update model using data read one piece at a time, so that only the
+   * current piece need be in memory. Each piece after the first must begin
+   * with the sentence boundary token that ends the piece before it, and
+   * that token must have just one tag, or the counts would not be those of
+   * the whole data; otherwise an {@link IllegalStateException} is thrown.
+   */
+  public final void emUpdateFrom(final Iterable<int[]> pieces) {
+    final ArcCounts counts = newCounts(), earlier = newCounts();
+    final Iterator<int[]> iter = pieces.iterator();
+    double forwTotal = 0;
+    long ntok = 0;
+    boolean first = true;
+
+    if (!iter.hasNext())
+      throw new RuntimeException("No training data to read");
+    int[] piece = iter.next();
+    while (piece != null) {
+      final int[] next = iter.hasNext() ? iter.next() : null;
+      if (!first && getTagdict(piece[0]).length != 1)
+        throw new IllegalStateException("Streamed training data must be "
+            + "cut at sentence boundaries with just one tag");
+      forwTotal += expectedCounts(piece, first, next == null,
+          next == null ? counts : earlier);
+      ntok += first ? piece.length : piece.length - 1;
+      first = false;
+      piece = next;
+    }
+
+    // Counts from before the last piece are scaled by the termination step
+    // after the fact, rather than read twice
+    counts.addAll(earlier, exp(lattice.termAdjust));
+
+    update(counts);
+
+    updateTagDict();
+    checkSanity();
+
+    setPerplex(exp(-forwTotal / ntok));
+  }
+
+  /**
+   * One pass of stepwise EM (Liang and Klein, 2009) over data read a piece
+   * at a time, as for {@link #emUpdateFrom(Iterable)}. The data is cut at
+   * sentence boundaries into mini-batches, and the parameters are
+   * re-estimated after each one from running statistics
+   * <code>mu = (1 - eta) mu + eta s</code>, where <code>s</code> are the
+   * expected counts of the mini-batch, scaled up to the size of the whole
+   * pass so that smoothing weighs the same as in batch EM, and
+   * <code>eta = (k + 1)^-decay</code> at step <code>k</code>. Sentences left
+   * over at the end of a piece are carried into the next, so every
+   * mini-batch but the last has the same number of sentences however the
+   * data is cut into pieces. If the size of the pass is not yet known, the
+   * pieces are read through once beforehand to count the tokens.
+   * 
+   * <p>A step only touches the statistics for the words of its mini-batch
+   * (see {@link StepwiseCounts}). Smoothing ties the parameters for every
+   * word to the statistics for all of the others, though, so the parameters
+   * are re-estimated in full only at the end of the pass. Before that, just
+   * the parameters for the words of the next mini-batch, which are all that
+   * forward-backward on it reads, are brought up to date.</p>
+   */
+  public final void emStepwiseFrom(final Iterable<int[]> pieces) {
+    assert stepBatch > 0;
+    if (passTokens == 0)
+      passTokens = countTokens(pieces);
+    final Iterator<int[]> iter = pieces.iterator();
+    final ArcCounts counts = newCounts();
+    final boolean[] mark = new boolean[numTerms()];
+    double forwTotal = 0;
+    long ntok = 0;
+    boolean start = true, stale = false;
+
+    if (!iter.hasNext())
+      throw new RuntimeException("No training data to read");
+    int[] data = iter.next();
+    while (data != null) {
+      final boolean last = !iter.hasNext();
+      final int[] bounds = shardBoundaries(data);
+      final int nb = bounds.length - 1;
+      int b = 0;
+      for (; b + stepBatch <= nb || (last && b < nb); b += stepBatch) {
+        final int e = min(b + stepBatch, nb);
+        final int[] batch = copyOfRange(data, bounds[b], bounds[e] + 1);
+        final int[] words = distinct(batch, mark);
+        if (stale)
+          updateRows(words);
+        forwTotal += expectedCounts(batch, start, last && e == nb, counts);
+        final int batchTokens = start ? batch.length : batch.length - 1;
+        ntok += batchTokens;
+        stepwiseUpdate(counts, words, (double) passTokens / batchTokens);
+        counts.clear(words);
+        start = false;
+        stale = true;
+      }
+
+      // the next piece starts with the boundary token that ends this one
+      if (last)
+        data = null;
+      else if (b == nb)
+        data = iter.next();
+      else
+        data = join(copyOfRange(data, bounds[b], data.length), iter.next());
+    }
+
+    update(stepCounts.scaledCounts());
+
+    updateTagDict();
+    checkSanity();
+
+    passTokens = ntok;
+    setPerplex(exp(-forwTotal / ntok));
+  }
+
+  /** @return the number of tokens in data read a piece at a time */
+  private static long countTokens(final Iterable<int[]> pieces) {
+    long ntok = 0;
+    boolean first = true;
+    for (final int[] piece : pieces) {
+      ntok += first ? piece.length : piece.length - 1;
+      first = false;
+    }
+    return ntok;
+  }
+
+  /**
+   * @return <code>head</code> followed by <code>tail</code>, which starts
+   *         with the boundary token that ends <code>head</code>
+   */
+  private static int[] join(final int[] head, final int[] tail) {
+    assert head[head.length - 1] == tail[0];
+    final int[] data = copyOf(head, head.length + tail.length - 1);
+    System.arraycopy(tail, 1, data, head.length, tail.length - 1);
+    return data;
+  }
+
+  /**
+   * @return the distinct words of <code>data</code>, in order of first
+   *         appearance; <code>mark</code> must be all false, and is again
+   *         after
+   */
+  private static int[] distinct(final int[] data, final boolean[] mark) {
+    final int[] words = new int[data.length];
+    int n = 0;
+    for (final int w : data) {
+      if (!mark[w]) {
+        mark[w] = true;
+        words[n++] = w;
+      }
+    }
+    for (int i = 0; i < n; i++)
+      mark[words[i]] = false;
+    return copyOf(words, n);
+  }
+
+  /**
+   * Fold the counts from one mini-batch, multiplied by <code>scale</code>,
+   * into the stepwise EM statistics. The counts must be for the words
+   * <code>words</code> only.
+   */
+  private void stepwiseUpdate(final ArcCounts counts, final int[] words,
+      final double scale) {
+    final double eta = pow(steps + 1, -stepDecay);
+    steps++;
+    if (stepCounts == null)
+      stepCounts = new StepwiseCounts(newCounts(), encoder.isStopPred());
+    stepCounts.step(counts, words, eta, scale);
+  }
+
+  /**
+   * Bring the parameters, tags and arcs for the words <code>words</code> up
+   * to date with the stepwise EM statistics
+   */
+  private void updateRows(final int[] words) {
+    updateRows(stepCounts, words);
+    tagdict.update(this, words);
+    updateArcs();
+  }
+
+  /**
+   * Train with stepwise online EM in place of batch EM: each call to
+   * {@link #emUpdateFromTrain()} is one pass over the training data, with
+   * the parameters updated after every mini-batch (see
+   * {@link #emStepwiseFrom(Iterable)})
+   * 
+   * @param batchSize
+   *          Sentences in each mini-batch
+   * @param decay
+   *          Step size decay, from 0.5 to 1. Smaller values forget older
+   *          mini-batches faster.
+   * @throws SequenceModelError
+   *           If sentence boundaries may take more than one tag under the
+   *           encoder, so that the data cannot be cut into mini-batches
+   */
+  public final void setStepwiseEM(final int batchSize, final double decay)
+      throws SequenceModelError {
+    assert batchSize > 0 && decay > .5 && decay <= 1;
+    if (!encoder.hasSingleTagEos())
+      throw new SequenceModelError("Stepwise EM needs sentence boundaries "
+          + "with just one tag to cut mini-batches at, which encoder "
+          + encoder.getType() + " does not have");
+    stepBatch = batchSize;
+    stepDecay = decay;
+    stepCounts = null;
+    steps = 0;
+    passTokens = trainStream == null ? orig.length : 0;
+  }
+
+  /**
+   * Forward-backward over one piece of the training data, split into shards
+   * at sentence boundaries
+   * 
+   * @param first
+   *          Whether the piece starts the data
+   * @param last
+   *          Whether the piece ends the data. The counts for it are then
+   *          scaled by the termination step, which is left in the lattice.
+   * @return log probability of the piece
+   */
+  private double expectedCounts(final int[] data, final boolean first,
+      final boolean last, final ArcCounts counts) {
+    final int[] bounds = shardBoundaries(data);
+    final int nshard = bounds.length - 1;
+    if (lattice == null)
+      lattice = new Lattice(numTags());
+
+    // The final shard goes first, since the termination step there scales
+    // the counts for all of the other shards
+    double logprob = expectedCounts(data, bounds[nshard - 1], data.length,
+        first && nshard == 1, last, counts, lattice, 0);
+    final double logWeight = last ? lattice.termAdjust : 0;
+
+    if (numThreads > 1 && nshard > 2) {
+      final PartialCounts c = 
+        parallelExpectedCounts(data, bounds, nshard - 1, first, logWeight);
+      counts.addAll(c.counts);
+      logprob += c.logprob;
+    } else {
+      logprob += expectedCounts(
+          data, bounds, 0, nshard - 1, first, counts, lattice, logWeight);
+    }
+    lattice.termAdjust = logWeight;
+    return logprob;
+  }
+
+  /**
+   * Workspace for forward-backward on one shard of the data, reused from
+   * shard to shard and grown to fit the longest shard seen
+   */
+  private static final class Lattice {
+    final int ntag;
+    double[][] forward = new double[0][], backward = new double[0][];
+    double[] scale = new double[0];
+
+    /** Marks the tags of the token at one end of the arcs being visited */
+    final boolean[] mark;
+
+    /** Log probabilities summed into one lattice cell */
+    final double[] terms;
+
+    /**
+     * Log ratio of the probability of the last shard before and after the
+     * termination step, which is included in the total used to normalize
+     * the counts for the whole data
+     */
+    double termAdjust = 0;
+
+    Lattice(final int _ntag) {
+      ntag = _ntag;
+      mark = new boolean[ntag];
+      terms = new double[ntag];
+    }
+
+    void mark(final int[] tags, final boolean on) {
+      for (final int t : tags)
+        mark[t] = on;
+    }
+
+    void ensureCapacity(final int ndata) {
+      if (ndata <= forward.length)
+        return;
+      final int n = max(ndata, 2 * forward.length);
+      forward = new double[n][ntag];
+      backward = new double[n][ntag];
+      scale = new double[n];
+    }
+  }
+
+  /**
+   * Forward-backward over shards <code>s0..s1)</code> of the data, one at a
+   * time, using the same lattice for each
+   * 
+   * @return log probability of the shards
+   */
+  private double expectedCounts(final int[] data, final int[] bounds,
+      final int s0, final int s1, final boolean first, final ArcCounts counts,
+      final Lattice lat, final double logWeight) {
+    double logprob = 0;
+    for (int s = s0; s < s1; s++)
+      logprob += expectedCounts(data, bounds[s], bounds[s + 1] + 1,
+          first && s == 0, false, counts, lat, logWeight);
+    return logprob;
+  }
+
+  /**
+   * Forward-backward over <code>data[from..to)</code>, adding the expected
+   * tag-word-tag counts to <code>counts</code>. Unless <code>start</code>,
+   * the token at <code>from</code> must admit exactly one tag, so that the
+   * lattice can be cut at that point without changing the counts. The
+   * termination step is taken only if <code>end</code>. Counts are
+   * multiplied by <code>exp(logWeight)</code>.
+   * 
+   * @return log probability of the span
+   */
+  private double expectedCounts(final int[] data, final int from,
+      final int to, final boolean start, final boolean end,
+      final ArcCounts counts, final Lattice lat, final double logWeight) {
+    lat.ensureCapacity(to - from);
+    lat.termAdjust = 0;
+    switch (fbType) {
+      case SCALED:
+        return scaledExpectedCounts(
+            data, from, to, start, end, counts, lat, logWeight);
+      default:
+        return logExpectedCounts(
+            data, from, to, start, end, counts, lat, logWeight);
+    }
+  }
+
+  /** Forward-backward summing log probabilities */
+  private double logExpectedCounts(final int[] data, final int from,
+      final int to, final boolean start, final boolean end,
+      final ArcCounts counts, final Lattice lat, final double logWeight) {
+    final int ndata = to - from, last = ndata - 1, ntag = numTags();
 
     final double neginf = Double.NEGATIVE_INFINITY;
 
     // Forward-backward algorithm applied to RRGs
 
-    double[][] forward = new double[ndata][ntag], backward = new double[ndata][ntag];
+    final double[][] forward = lat.forward, backward = lat.backward;
 
     for (int d = 0; d < ndata; d++) {
-      for (int t = 0; t < ntag; t++) {
-        forward[d][t] = neginf;
-        backward[d][t] = neginf;
-      }
+      fill(forward[d], neginf);
+      fill(backward[d], neginf);
     }
 
     // Forward probabilities
     // Time n = 0
-    for (int j = 0; j < ntag; j++)
-      forward[0][j] = initTagProb(j);
+    if (start)
+      for (int j = 0; j < ntag; j++)
+        forward[0][j] = initTagProb(j);
+    else
+      for (int j : getTagdict(data[from]))
+        forward[0][j] = 0;
 
-    // Times n+1 to N
+    // Times n+1 to N, summing over the arcs into each tag at once
+    final boolean[] mark = lat.mark;
+    final double[] terms = lat.terms;
     for (int n = 1; n < ndata; n++) {
-      for (int j : getTagdict(data[n - 1])) {
-        for (int k : getTagdict(data[n])) {
-          final double forwUpd = forward[n - 1][j] + arcprob(j, data[n - 1], k);
-          forward[n][k] = Util.logadd(forward[n][k], forwUpd);
-        }
+      final int w = data[from + n - 1];
+      final int[] prevTags = getTagdict(w);
+      lat.mark(prevTags, true);
+      for (int k : getTagdict(data[from + n])) {
+        int m = 0;
+        for (int j : pred[k])
+          if (mark[j])
+            terms[m++] = forward[n - 1][j] + arcprob(j, w, k);
+        forward[n][k] = LogMath.logsumexp(terms, m);
       }
+      lat.mark(prevTags, false);
     }
 
     // Finally update forward probabilities with last token probs
-    for (int j : getTagdict(data[last - 1])) {
-      for (int k : getTagdict(data[last])) {
-        final double forwUpd = forward[last - 1][j] + termProb(k, data[last]);
-        forward[last][j] = Util.logadd(forward[last][j], forwUpd);
+    double pathTotal = neginf;
+    if (end) {
+      for (int t : getTagdict(data[to - 1]))
+        pathTotal = LogMath.logadd(pathTotal, forward[last][t]);
+      for (int j : getTagdict(data[to - 2])) {
+        for (int k : getTagdict(data[to - 1])) {
+          final double forwUpd = forward[last - 1][j] + termProb(k, data[to - 1]);
+          forward[last][j] = LogMath.logadd(forward[last][j], forwUpd);
+        }
       }
     }
 
     double forwTotal = neginf;
 
-    for (int t : getTagdict(data[last])) {
-      forwTotal = Util.logadd(forwTotal, forward[last][t]);
+    for (int t : getTagdict(data[to - 1])) {
+      forwTotal = LogMath.logadd(forwTotal, forward[last][t]);
       backward[last][t] = 0;
     }
 
-    // Backward probabilities. Also collecting new training counts as we go
-    final double[][][] counts = new double[ntag][nvocab][ntag];
+    if (end)
+      lat.termAdjust = pathTotal - forwTotal;
 
+    // Backward probabilities. Also collecting new training counts as we go
+    // summing over the arcs out of each tag at once
     for (int n = last; n > 0; n--) {
-      for (int k : getTagdict(data[n])) {
-        for (int j : getTagdict(data[n - 1])) {
+      final int w = data[from + n - 1];
+      final int[] tags = getTagdict(data[from + n]);
+      lat.mark(tags, true);
+      for (int j : getTagdict(w)) {
+        int m = 0;
+        for (int k : succ[j]) {
+          if (!mark[k])
+            continue;
           final double fwd = forward[n - 1][j], bwd = backward[n][k], aprob = arcprob(
-              j, data[n - 1], k), backUpd = aprob + bwd;
+              j, w, k), backUpd = aprob + bwd;
 
-          backward[n - 1][j] = Util.logadd(backward[n - 1][j], backUpd);
+          terms[m++] = backUpd;
 
           // TODO shouldn't need to check for neginfs
           if (aprob != neginf && fwd != neginf && bwd != neginf) {
-            final double logupd = fwd + bwd + aprob - forwTotal, upd = exp(logupd);
-            final int w = data[n - 1];
-            counts[j][w][k] += upd;
+            final double logupd = fwd + bwd + aprob - forwTotal + logWeight, 
+              upd = exp(logupd);
+            counts.add(j, w, k, upd);
           }
         }
+        backward[n - 1][j] = LogMath.logsumexp(terms, m);
       }
+      lat.mark(tags, false);
     }
 
-    update(counts);
+    return forwTotal;
+  }
 
-    updateTagDict();
-    checkSanity();
+  /**
+   * Forward-backward in linear space, with the forward probabilities
+   * rescaled to sum to one at each position and the backward probabilities
+   * scaled by the same factors. The log probability of the span is the sum of
+   * the logs of the scaling factors.
+   */
+  private double scaledExpectedCounts(final int[] data, final int from,
+      final int to, final boolean start, final boolean end,
+      final ArcCounts counts, final Lattice lat, final double logWeight) {
+    final int ndata = to - from, last = ndata - 1, ntag = numTags();
 
-    // Get perplexity
-    setPerplex(exp(-forwTotal / ndata));
+    final double[][] forward = lat.forward, backward = lat.backward;
+    final double[] scale = lat.scale;
+
+    for (int d = 0; d < ndata; d++) {
+      fill(forward[d], 0);
+      fill(backward[d], 0);
+    }
+
+    // Forward probabilities
+    // Time n = 0
+    if (start)
+      for (int j = 0; j < ntag; j++)
+        forward[0][j] = exp(initTagProb(j));
+    else
+      for (int j : getTagdict(data[from]))
+        forward[0][j] = 1;
+    scale[0] = normalize(forward[0]);
+
+    // Times n+1 to N
+    final boolean[] mark = lat.mark;
+    for (int n = 1; n < ndata; n++) {
+      final int w = data[from + n - 1];
+      final double[] prev = forward[n - 1], curr = forward[n];
+      final int[] tags = getTagdict(data[from + n]);
+      lat.mark(tags, true);
+      for (int j : getTagdict(w)) {
+        final double f = prev[j];
+        if (f != 0)
+          for (int k : succ[j])
+            if (mark[k])
+              curr[k] += f * nonLogArcprob(j, w, k);
+      }
+      lat.mark(tags, false);
+      scale[n] = normalize(curr);
+    }
+
+    // Finally update forward probabilities with last token probs
+    double pathSum = 0;
+    if (end) {
+      for (int t : getTagdict(data[to - 1]))
+        pathSum += forward[last][t];
+      for (int j : getTagdict(data[to - 2])) {
+        for (int k : getTagdict(data[to - 1])) {
+          final double forwUpd = 
+            forward[last - 1][j] * exp(termProb(k, data[to - 1]));
+          forward[last][j] += forwUpd / scale[last];
+        }
+      }
+    }
+
+    double lastSum = 0;
+    for (int t : getTagdict(data[to - 1])) {
+      lastSum += forward[last][t];
+      backward[last][t] = 1;
+    }
+
+    if (end)
+      lat.termAdjust = log(pathSum) - log(lastSum);
+
+    double forwTotal = log(lastSum);
+    for (int n = 0; n < ndata; n++)
+      forwTotal += log(scale[n]);
+
+    // Backward probabilities. Also collecting new training counts as we go
+    for (int n = last; n > 0; n--) {
+      final int w = data[from + n - 1];
+      final double[] fwd = forward[n - 1], bwd = backward[n], 
+        prev = backward[n - 1];
+      final double norm = exp(logWeight) / (scale[n] * lastSum);
+      final int[] prevTags = getTagdict(w);
+      lat.mark(prevTags, true);
+      for (int k : getTagdict(data[from + n])) {
+        final double b = bwd[k];
+        if (b == 0)
+          continue;
+        for (int j : pred[k]) {
+          if (!mark[j])
+            continue;
+          final double upd = nonLogArcprob(j, w, k) * b;
+          prev[j] += upd;
+          if (upd != 0 && fwd[j] != 0)
+            counts.add(j, w, k, fwd[j] * upd * norm);
+        }
+      }
+      lat.mark(prevTags, false);
+      for (int j : prevTags)
+        prev[j] /= scale[n];
+    }
+
+    return forwTotal;
+  }
+
+  /** Scale <code>p</code> to sum to one, and return the original sum */
+  private static double normalize(final double[] p) {
+    double sum = 0;
+    for (double d : p)
+      sum += d;
+    assert sum > 0 : "no path through the lattice";
+    for (int i = 0; i < p.length; i++)
+      p[i] /= sum;
+    return sum;
+  }
+
+  /** Expected counts and log probability collected by one EM worker */
+  private static final class PartialCounts {
+    final ArcCounts counts;
+    double logprob = 0;
+
+    PartialCounts(final ArcCounts _counts) {
+      counts = _counts;
+    }
+
+    void add(final PartialCounts other) {
+      counts.addAll(other.counts);
+      logprob += other.logprob;
+    }
+  }
+
+  /** @return an empty count store laid out for the current tag dictionary */
+  private ArcCounts newCounts() {
+    return new ArcCounts(encoder.constraints(), tagdict);
+  }
+
+  /**
+   * Positions at which the lattice may be cut: the start and end of the data,
+   * and every sentence boundary whose token admits just one tag
+   */
+  private int[] shardBoundaries(final int[] data) {
+    assert data.length > 1;
+    int[] bounds = new int[1024];
+    int n = 0;
+    bounds[n++] = 0;
+    for (int i = 1; i < data.length - 1; i++) {
+      if (encoder.isEos(data[i]) && getTagdict(data[i]).length == 1) {
+        if (n == bounds.length)
+          bounds = copyOf(bounds, 2 * n);
+        bounds[n++] = i;
+      }
+    }
+    if (n == bounds.length)
+      bounds = copyOf(bounds, n + 1);
+    bounds[n++] = data.length - 1;
+    return copyOf(bounds, n);
   }
 
+  /**
+   * Run forward-backward on the first <code>nshard</code> sentence shards in
+   * parallel, each worker
+   * collecting counts in its own accumulator, and sum the results
+   */
+  private PartialCounts parallelExpectedCounts(final int[] data,
+      final int[] bounds, final int nshard, final boolean first,
+      final double logWeight) {
+    final int[] runs = splitShards(bounds, nshard);
+    final List<Callable<PartialCounts>> tasks =
+      new ArrayList<Callable<PartialCounts>>();
+    for (int i = 0; i < runs.length - 1; i++) {
+      final int s0 = runs[i], s1 = runs[i + 1];
+      tasks.add(new Callable<PartialCounts>() {
+        @Override
+        public PartialCounts call() {
+          final PartialCounts c = new PartialCounts(newCounts());
+          c.logprob = expectedCounts(data, bounds, s0, s1, first, c.counts,
+              new Lattice(numTags()), logWeight);
+          return c;
+        }
+      });
+    }
+
+    PartialCounts total = null;
+    for (final PartialCounts c : invokeAll(tasks)) {
+      if (total == null)
+        total = c;
+      else
+        total.add(c);
+    }
+    return total;
+  }
+
+  /**
+   * Give each worker a contiguous run of the first <code>nshard</code>
+   * shards, with about the same number of tokens in each run
+   * 
+   * @return the first shard of each run, followed by <code>nshard</code>
+   */
+  private int[] splitShards(final int[] bounds, final int nshard) {
+    final int[] runs = new int[numThreads + 1];
+    final double perWorker = ((double) bounds[nshard]) / numThreads;
+    int n = 0, first = 0;
+    for (int i = 1; i <= numThreads && first < nshard; i++) {
+      int end = first + 1;
+      while (end < nshard && bounds[end] < i * perWorker)
+        end++;
+      if (i == numThreads)
+        end = nshard;
+      runs[n++] = first;
+      first = end;
+    }
+    runs[n++] = nshard;
+    return copyOf(runs, n);
+  }
+
+  private <T> List<T> invokeAll(final List<Callable<T>> tasks) {
+    if (pool == null)
+      pool = new WorkerPool(numThreads);
+    return pool.invokeAll(tasks);
+  }
+
+  /**
+   * Set the number of worker threads used for EM and decoding. With more
+   * than one thread the data is split at sentence boundaries and the
+   * forward-backward and Viterbi passes over the pieces are run in parallel
+   */
+  public final void setNumThreads(final int n) {
+    assert n > 0;
+    if (n != numThreads && pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    numThreads = n;
+  }
+
+  public final int getNumThreads() {
+    return numThreads;
+  }
+
+  /** Choose the forward-backward algorithm used for EM */
+  public final void setForwardBackwardType(final ForwardBackwardType t) {
+    fbType = t;
+    keepNonLogArcs(t == ForwardBackwardType.SCALED);
+  }
+
+  public final ForwardBackwardType getForwardBackwardType() {
+    return fbType;
+  }
+
+  /**
+   * Models that can keep a table of arc probabilities not in log space, for
+   * faster {@link #nonLogArcprob(int, int, int)}, should do so when asked
+   */
+  protected void keepNonLogArcs(final boolean keep) { }
+
+  /**
+   * Update the tags each word may take, and the arcs between tags, after the
+   * parameters change. The tag dictionary is updated in place, so only the
+   * words whose tags have changed are touched.
+   */
   public void updateTagDict() {
-    int[] temp;
-    final Double neginf = Double.NEGATIVE_INFINITY;
+    tagdict.update(this);
+    updateArcs();
+  }
+
+  /** The tag dictionary, which models with the same emissions can share */
+  final TagDict tagDict() {
+    return tagdict;
+  }
+
+  /**
+   * Tag pairs that cannot be adjacent under the current parameters,
+   * <code>true</code> where the pair is disallowed. Every arc between such a
+   * pair must have probability zero.
+   */
+  protected boolean[][] arcConstraints() {
+    return encoder.constraints();
+  }
 
-    for (int w = 0; w < numTerms(); w++) {
-      temp = new int[numTags()];
-      int ntag = 0;
-      for (int t = 0; t < numTags(); t++)
-        if (termProb(t, w) != neginf)
-          temp[ntag++] = t;
+  private void updateArcs() {
+    final boolean[][] constraints = arcConstraints();
+    final int ntag = numTags();
+    final int[] nsucc = new int[ntag], npred = new int[ntag];
+    for (int j = 0; j < ntag; j++)
+      for (int k = 0; k < ntag; k++)
+        if (!constraints[j][k]) {
+          nsucc[j]++;
+          npred[k]++;
+        }
 
-      tagdict[w] = copyOf(temp, ntag);
+    succ = new int[ntag][];
+    pred = new int[ntag][];
+    for (int t = 0; t < ntag; t++) {
+      succ[t] = new int[nsucc[t]];
+      pred[t] = new int[npred[t]];
+      nsucc[t] = npred[t] = 0;
     }
+    for (int j = 0; j < ntag; j++)
+      for (int k = 0; k < ntag; k++)
+        if (!constraints[j][k]) {
+          succ[j][nsucc[j]++] = k;
+          pred[k][npred[k]++] = j;
+        }
   }
 
   private final void setPerplex(final double p) {
@@ -135,80 +818,163 @@ public abstract class SequenceModel {
 
   /** Update model using expectation maximization on original training data */
   public final void emUpdateFromTrain() {
-    emUpdateFrom(orig);
+    if (stepBatch > 0)
+      emStepwiseFrom(trainStream != null ? trainStream
+          : Collections.singletonList(orig));
+    else if (trainStream != null)
+      emUpdateFrom(trainStream);
+    else
+      emUpdateFrom(orig);
+  }
+
+  /**
+   * Train from data read a piece at a time on each EM iteration (see
+   * {@link #emUpdateFrom(Iterable)}) rather than from the original training
+   * data held in memory
+   */
+  public final void setTrainStream(final Iterable<int[]> pieces) {
+    trainStream = pieces;
+    passTokens = 0;
   }
 
   public final int[] getTagdict(int term) {
-    if (term >= tagdict.length)
-      return encoder.allNonStopTags();
+    if (term >= tagdict.numTerms())
+      return oovTags;
     else
-      return tagdict[term];
+      return tagdict.tags(term);
   }
 
-  /** Viterbi tagger for right-regular grammars */
-  public final int[] tag(int[] tokens) {
-    int ndata = tokens.length;
+  /**
+   * Viterbi tagger for right-regular grammars. With more than one thread
+   * (see {@link #setNumThreads(int)}) sentences are tagged in parallel.
+   */
+  public final int[] tag(final int[] tokens) {
+    if (numThreads > 1 && tokens.length > 1)
+      return parallelTag(tokens);
+    else
+      return tag(tokens, new DecoderWorkspace());
+  }
 
-    final double[][] viterbi = new double[ndata][];
-    final int[][] backpointer = new int[ndata][];
-    int[] tags, _tags = getTagdict(tokens[0]);
+  /**
+   * Viterbi tagger for right-regular grammars, using <code>ws</code> for all
+   * intermediate storage. Only the returned tags are newly allocated.
+   */
+  public final int[] tag(final int[] tokens, final DecoderWorkspace ws) {
+    final int[] output = new int[tokens.length];
+    tag(tokens, 0, tokens.length, ws, output);
+    return output;
+  }
+
+  /**
+   * Tag the sentence shards of <code>tokens</code> in parallel. Since the
+   * token at each cut point admits only one tag, the best path through each
+   * shard is independent of the others
+   */
+  private int[] parallelTag(final int[] tokens) {
+    final int[] bounds = shardBoundaries(tokens);
+    final int[] runs = splitShards(bounds, bounds.length - 1);
+    final int[] output = new int[tokens.length];
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < runs.length - 1; i++) {
+      final int s0 = runs[i], s1 = runs[i + 1];
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          final DecoderWorkspace ws = new DecoderWorkspace();
+          for (int s = s0; s < s1; s++)
+            tag(tokens, bounds[s], bounds[s + 1] + 1, ws, output);
+          return null;
+        }
+      });
+    }
+    invokeAll(tasks);
+    return output;
+  }
 
-    double[] v;
-    MaxVals mv;
+  /**
+   * Viterbi over <code>tokens[from..to)</code>, writing the best tags to the
+   * same positions of <code>output</code>. If <code>from</code> is not the
+   * start of the data, the token there must admit exactly one tag.
+   */
+  private void tag(final int[] tokens, final int from, final int to,
+      final DecoderWorkspace ws, final int[] output) {
+    final int ndata = to - from, ntag = numTags();
+    ws.ensureCapacity(ndata, ntag);
 
-    viterbi[0] = new double[_tags.length];
-    for (int j = 0; j < _tags.length; j++)
-      viterbi[0][j] = initTagProb(_tags[j]);
+    final double[] viterbi = ws.viterbi;
+    final int[] backpointer = ws.backpointer, pos = ws.pos;
+    int[] tags, _tags = getTagdict(tokens[from]);
+
+    if (from == 0)
+      for (int j = 0; j < _tags.length; j++)
+        viterbi[j] = initTagProb(_tags[j]);
+    else
+      for (int j = 0; j < _tags.length; j++)
+        viterbi[j] = 0;
 
     for (int t = 1; t < ndata; t++) {
-      tags = getTagdict(tokens[t]);
-      viterbi[t] = new double[tags.length];
-      backpointer[t] = new int[tags.length];
-      final double[][] arcprobs = new double[_tags.length][tags.length];
-      final int token = tokens[t - 1];
+      tags = getTagdict(tokens[from + t]);
+      final int token = tokens[from + t - 1], prev = (t - 1) * ntag, 
+        curr = t * ntag;
       for (int j = 0; j < _tags.length; j++)
-        for (int k = 0; k < tags.length; k++)
-          arcprobs[j][k] = arcprob(_tags[j], token, tags[k]);
+        pos[_tags[j]] = j;
 
       for (int k = 0; k < tags.length; k++) {
-        v = new double[_tags.length];
-        for (int j = 0; j < _tags.length; j++)
-          v[j] = viterbi[t - 1][j] + arcprobs[j][k];
-
-        mv = new MaxVals(v);
-        viterbi[t][k] = mv.max;
-        backpointer[t][k] = mv.argmax;
+        double max = Double.NEGATIVE_INFINITY;
+        int argmax = -1;
+        for (final int p : pred[tags[k]]) {
+          final int j = pos[p];
+          if (j == -1)
+            continue;
+          final double v = viterbi[prev + j] + arcprob(p, token, tags[k]);
+          if (v > max) {
+            argmax = j;
+            max = v;
+          }
+        }
+        viterbi[curr + k] = max;
+        backpointer[curr + k] = argmax;
       }
 
-      mv = new MaxVals(viterbi[t]);
-      assert mv.argmax != -1;
+      for (int j = 0; j < _tags.length; j++)
+        pos[_tags[j]] = -1;
+
+      assert argmax(viterbi, curr, tags.length) != -1;
 
       _tags = tags;
     }
 
     final int last = ndata - 1;
-    final int[] lastTags = getTagdict(tokens[last]);
-    for (int t = 0; t < lastTags.length; t++)
-      viterbi[last][t] += termProb(lastTags[t], tokens[last]);
+    final int[] lastTags = getTagdict(tokens[from + last]);
+    if (to == tokens.length)
+      for (int t = 0; t < lastTags.length; t++)
+        viterbi[last * ntag + t] += termProb(lastTags[t], tokens[from + last]);
 
-    mv = new MaxVals(viterbi[last]);
-    assert mv.argmax != -1;
+    final int best = argmax(viterbi, last * ntag, lastTags.length);
+    assert best != -1;
 
-    // first past gets the indices for the tags in the tagdict
-    final int[] output = new int[ndata];
-    int curr, next;
-    output[last] = mv.argmax;
+    // follow the backpointers, which are indices into the tagdict
+    int curr = best, next;
+    output[from + last] = lastTags[best];
     for (int i = last; i > 0; i--) {
-      curr = output[i];
-      next = backpointer[i][curr];
-      output[i - 1] = next;
+      next = backpointer[i * ntag + curr];
+      output[from + i - 1] = getTagdict(tokens[from + i - 1])[next];
+      curr = next;
     }
+  }
 
-    // second pass fills in the actual tags from the tagdict
-    for (int i = 0; i < ndata; i++)
-      output[i] = getTagdict(tokens[i])[output[i]];
-
-    return output;
+  /** @return index of the first maximum of <code>v[off..off+n)</code>, less
+   * <code>off</code>, or -1 if all are negative infinity */
+  private static int argmax(final double[] v, final int off, final int n) {
+    double max = Double.NEGATIVE_INFINITY;
+    int argmax = -1;
+    for (int i = 0; i < n; i++) {
+      if (v[off + i] > max) {
+        argmax = i;
+        max = v[off + i];
+      }
+    }
+    return argmax;
   }
 
   /** @return perplexity of current EM step */
@@ -216,15 +982,29 @@ public abstract class SequenceModel {
     return perplex;
   }
 
-  /** Check that the probability distributions are not degenerate */
+  /** @return how thoroughly models check their distributions */
+  public static ValidationLevel getValidationLevel() {
+    return validation;
+  }
+
+  /** Set how thoroughly all models check their distributions */
+  public static void setValidationLevel(final ValidationLevel level) {
+    validation = level;
+  }
+
+  /**
+   * Check that the probability distributions are not degenerate, as
+   * thoroughly as the validation level asks
+   */
   public void checkSanity() {
-    for (int t = 0; t < numTags(); t++) {
+    for (final int t : validation.rows(numTags())) {
       double sum = 0;
       for (int w = 0; w < numTerms(); w++)
         for (int _t = 0; _t < numTags(); _t++)
           sum += exp(arcprob(t, w, _t));
 
-      assert abs(sum - 1.) < 1e-5;
+      ValidationLevel.check(ValidationLevel.sumsToOne(sum),
+          "arcs from tag " + t + " sum to " + sum);
     }
   }
 
@@ -239,12 +1019,25 @@ public abstract class SequenceModel {
    */
   public abstract double arcprob(int j, int w, int k);
 
+  /** @return The arc probability, not in log space */
+  public double nonLogArcprob(int j, int w, int k) {
+    return exp(arcprob(j, w, k));
+  }
+
   /**
    * Update the model with combined emission/transition counts
    * 
    * @param counts
    */
-  public abstract void update(double[][][] counts);
+  public abstract void update(ArcCounts counts);
+
+  /**
+   * Re-estimate the parameters for the words <code>words</code> from the
+   * stepwise EM statistics <code>counts</code>, along with those shared by
+   * all words. The parameters for other words may be left out of date until
+   * the next {@link #update(ArcCounts)}.
+   */
+  abstract void updateRows(StepwiseCounts counts, int[] words);
 
   public abstract int numTags();
 
@@ -254,6 +1047,106 @@ public abstract class SequenceModel {
 
   public abstract double termProb(int tag, int term);
 
+  public abstract SequenceModelType getType();
+
+  /** Write the model parameters, following the header written by
+   * {@link #save(String)} */
+  protected abstract void writeParams(ModelFile.Writer out) throws IOException;
+
+  /**
+   * Save the model in binary form: the encoder type, the vocabulary, the tag
+   * dictionary and the model parameters. The training data is not saved.
+   */
+  public final void save(final String filename) throws IOException,
+      SequenceModelError {
+    if (encoder.getType() == null)
+      throw new SequenceModelError(
+          "Cannot save model with encoder of unknown type: "
+          + encoder.getClass().getSimpleName());
+
+    final ModelFile.Writer out = new ModelFile.Writer(filename);
+    try {
+      out.writeInt(ModelFile.MAGIC);
+      out.writeInt(ModelFile.VERSION);
+      out.writeString(getType().name());
+      out.writeString(encoder.getType());
+      out.writeString(encoder.getStop());
+
+      final Alpha alpha = encoder.getAlpha();
+      out.writeInt(alpha.size());
+      for (int i = 0; i < alpha.size(); i++)
+        out.writeString(alpha.getString(i));
+
+      out.writeInt(tagdict.numTerms());
+      for (int w = 0; w < tagdict.numTerms(); w++)
+        out.writeInts(tagdict.tags(w));
+
+      writeParams(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Load a model written by {@link #save(String)}. The model vocabulary is
+   * added to <code>alpha</code>, which must not already have other terms
+   * with the same codes. A loaded model has no training data, so it can be
+   * used for tagging but not for further EM.
+   */
+  public static SequenceModel load(final String filename, final Alpha alpha)
+      throws IOException, SequenceModelError, EncoderError {
+    final ModelFile.Reader in = new ModelFile.Reader(filename);
+    try {
+      if (in.readInt() != ModelFile.MAGIC)
+        throw new SequenceModelError("Not a model file: " + filename);
+      final int version = in.readInt();
+      if (version != ModelFile.VERSION)
+        throw new SequenceModelError("Unsupported model file version "
+            + version + ": " + filename);
+
+      final SequenceModelType type = SequenceModelType.valueOf(in.readString());
+      final String encoderType = in.readString(), stop = in.readString();
+
+      final int nalpha = in.readInt();
+      for (int i = 0; i < nalpha; i++) {
+        final String term = in.readString();
+        if (alpha.getCode(term) != i)
+          throw new SequenceModelError(
+              "Model vocabulary does not match existing vocabulary at term: "
+              + term);
+      }
+
+      final TagEncoder encoder =
+        TagEncoder.getBIOEncoder(encoderType, stop, alpha);
+
+      final int[][] tagdict = new int[in.readInt()][];
+      for (int w = 0; w < tagdict.length; w++)
+        tagdict[w] = in.readInts();
+
+      final SequenceModel model;
+      switch (type) {
+        case HMM:
+          model = HMM.readParams(in, encoder);
+          break;
+        case PRLG:
+          model = RRG.readParams(in, encoder);
+          break;
+        default:
+          throw new SequenceModelError("Unexpected sequence model type: "
+              + type);
+      }
+
+      if (tagdict.length != model.tagdict.numTerms())
+        throw new SequenceModelError("Tag dictionary size does not match "
+            + "model vocabulary: " + filename);
+      for (int w = 0; w < tagdict.length; w++)
+        model.tagdict.set(w, tagdict[w]);
+      return model;
+    } finally {
+      in.close();
+    }
+  }
+
   public static SequenceModel mleEstimate(
       final SequenceModelType sequenceModelType,
       final ChunkedSegmentedCorpus corpus, final TagEncoder encoder,
@@ -269,6 +1162,25 @@ public abstract class SequenceModel {
     }
   }
 
+  /**
+   * Estimate a model from counts collected elsewhere, such as from a
+   * training corpus read in batches. The model holds no training data.
+   */
+  public static SequenceModel fromCounts(
+      final SequenceModelType sequenceModelType, final ArcCounts counts,
+      final TagEncoder encoder, final double smoothParam)
+      throws SequenceModelError {
+    switch (sequenceModelType) {
+      case HMM:
+        return HMM.fromCounts(counts, encoder, new int[0], smoothParam);
+      case PRLG:
+        return RRG.fromCounts(counts, encoder, new int[0], smoothParam);
+      default:
+        throw new SequenceModelError("Unexpected sequence model type: "
+            + sequenceModelType);
+    }
+  }
+
   public static SequenceModel uniformEstimate(
       final SequenceModelType sequenceModelType,
       final StopSegmentCorpus corpus, final TagEncoder encoder,
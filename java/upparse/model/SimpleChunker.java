@@ -1,6 +1,7 @@
 package upparse.model;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import upparse.corpus.*;
 
@@ -13,113 +14,259 @@ public class SimpleChunker implements Chunker {
 
   public static final String STOP = "__stop__";
   final Alpha alpha;
-  private final NgramCounts bigramCounts;
+  private final BigramCounts bigramCounts;
   private final int stopv;
   private final double[] factor;
 
+  /** Workers for counting and chunking, or null to run on one thread */
+  private final WorkerPool pool;
+
   public static SimpleChunker fromStopSegmentCorpus(final Alpha alpha,
       final StopSegmentCorpus corpus, final double[] factor) {
-    final NgramCounts bigramCounts = new NgramCounts();
+    return fromStopSegmentCorpus(alpha, corpus, factor, 1);
+  }
+
+  /**
+   * Count bigrams in the corpus, on <code>numThreads</code> threads if more
+   * than one. The chunker then also chunks sentences in parallel.
+   */
+  public static SimpleChunker fromStopSegmentCorpus(final Alpha alpha,
+      final StopSegmentCorpus corpus, final double[] factor,
+      final int numThreads) {
+    final int stopv = alpha.getCode(STOP);
+    final WorkerPool pool = numThreads > 1 ? new WorkerPool(numThreads) : null;
+    return new SimpleChunker(alpha, countBigrams(corpus, stopv, pool), stopv,
+        factor, pool);
+  }
+
+  /**
+   * Count bigrams over batches of sentences, one batch at a time, so that
+   * the corpus need not be held in memory
+   */
+  public static SimpleChunker fromStopSegmentCorpora(final Alpha alpha,
+      final Iterable<StopSegmentCorpus> batches, final double[] factor,
+      final int numThreads) {
     final int stopv = alpha.getCode(STOP);
-    for (int[][] s : corpus.arrayIter()) {
-      for (int[] seg : s) {
-        if (seg.length > 0) {
-          final int last = seg.length - 1;
-          bigramCounts.incr(stopv, seg[0]);
-          bigramCounts.incr(seg[last], stopv);
-          for (int j = 0; j < last; j++) {
-            bigramCounts.incr(seg[j], seg[j + 1]);
+    final WorkerPool pool = numThreads > 1 ? new WorkerPool(numThreads) : null;
+    final BigramCounts bigramCounts = new BigramCounts();
+    for (final StopSegmentCorpus batch : batches)
+      bigramCounts.addAll(countBigrams(batch, stopv, pool));
+    return new SimpleChunker(alpha, bigramCounts, stopv, factor, pool);
+  }
+
+  private static BigramCounts countBigrams(final StopSegmentCorpus corpus,
+      final int stopv, final WorkerPool pool) {
+    final BigramCounts bigramCounts;
+    if (pool != null && corpus.size() > 1) {
+      // Each worker counts its own range of sentences, then the partial
+      // tables are merged
+      final int[] ranges = pool.split(corpus.size());
+      final List<Callable<BigramCounts>> tasks =
+        new ArrayList<Callable<BigramCounts>>();
+      for (int r = 0; r < ranges.length - 1; r++) {
+        final int from = ranges[r], to = ranges[r + 1];
+        tasks.add(new Callable<BigramCounts>() {
+          @Override
+          public BigramCounts call() {
+            return countBigrams(corpus, from, to, stopv);
           }
+        });
+      }
+      final List<BigramCounts> partial = pool.invokeAll(tasks);
+      bigramCounts = partial.get(0);
+      for (int r = 1; r < partial.size(); r++)
+        bigramCounts.addAll(partial.get(r));
+    } else
+      bigramCounts = countBigrams(corpus, 0, corpus.size(), stopv);
+    return bigramCounts;
+  }
+
+  private static BigramCounts countBigrams(final StopSegmentCorpus corpus,
+      final int from, final int to, final int stopv) {
+    final BigramCounts bigramCounts = new BigramCounts();
+    for (int seg = corpus.segmentStart(from); seg < corpus.segmentStart(to); 
+        seg++) {
+      final int first = corpus.tokenStart(seg), last = corpus.tokenEnd(seg) - 1;
+      if (last >= first) {
+        bigramCounts.incr(stopv, corpus.token(first));
+        bigramCounts.incr(corpus.token(last), stopv);
+        for (int t = first; t < last; t++) {
+          bigramCounts.incr(corpus.token(t), corpus.token(t + 1));
         }
       }
     }
-
-    return new SimpleChunker(alpha, bigramCounts, stopv, factor);
+    return bigramCounts;
   }
 
-  private SimpleChunker(final Alpha _alpha, final NgramCounts _bigramCounts,
-      final int _stopv, final double[] _factor) {
+  private SimpleChunker(final Alpha _alpha, final BigramCounts _bigramCounts,
+      final int _stopv, final double[] _factor, final WorkerPool _pool) {
     alpha = _alpha;
     bigramCounts = _bigramCounts;
     stopv = _stopv;
     factor = _factor;
+    pool = _pool;
   }
 
   @Override
-  public ChunkedSegmentedCorpus getChunkedCorpus(StopSegmentCorpus c) {
-    int[][][] _corpus = c.getArrays();
-    int[][] _segments;
-    int[] _terms;
+  public ChunkedSegmentedCorpus getChunkedCorpus(final StopSegmentCorpus c) {
+    // joined[t] is true if token t is in the same chunk as token t + 1
+    final boolean[] joined = new boolean[c.numTokens()];
 
-    double[][] pyr;
+    if (pool != null && c.size() > 1) {
+      final int[] ranges = pool.split(c.size());
+      final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int r = 0; r < ranges.length - 1; r++) {
+        final int from = ranges[r], to = ranges[r + 1];
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            final Pyramid pyr = new Pyramid();
+            for (int seg = c.segmentStart(from); seg < c.segmentStart(to); 
+                seg++)
+              chunkSegment(c, seg, pyr, joined);
+            return null;
+          }
+        });
+      }
+      pool.invokeAll(tasks);
+    } else {
+      final Pyramid pyr = new Pyramid();
+      for (int seg = 0; seg < c.segmentStart(c.size()); seg++)
+        chunkSegment(c, seg, pyr, joined);
+    }
 
-    int[][][][] clumpedCorpus = new int[_corpus.length][][][];
+    return chunkedCorpus(c, joined);
+  }
 
-    int[][] clumpsTmp;
+  /** Chunk each batch of sentences as it is read */
+  public Iterable<ChunkedSegmentedCorpus> chunkedCorpora(
+      final Iterable<StopSegmentCorpus> batches) {
+    return new Iterable<ChunkedSegmentedCorpus>() {
+      @Override
+      public Iterator<ChunkedSegmentedCorpus> iterator() {
+        final Iterator<StopSegmentCorpus> iter = batches.iterator();
+        return new Iterator<ChunkedSegmentedCorpus>() {
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
 
-    int i, j, k, m, n, pyrI, pyrJ, numClump, index1, index2, t1, t2;
+          @Override
+          public ChunkedSegmentedCorpus next() {
+            return getChunkedCorpus(iter.next());
+          }
 
-    double count, doClump, dontClumpL, dontClumpR, sumP;
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
 
-    boolean[] toclump;
+  /**
+   * Build the chunked corpus from the chunk decisions. Segments of a single
+   * token are left without any chunks.
+   */
+  private ChunkedSegmentedCorpus chunkedCorpus(final StopSegmentCorpus c,
+      final boolean[] joined) {
+    final int nseg = c.segmentStart(c.size());
+    int ntok = 0, nchunk = 0;
+    for (int seg = 0; seg < nseg; seg++) {
+      final int first = c.tokenStart(seg), end = c.tokenEnd(seg);
+      if (end - first > 1) {
+        ntok += end - first;
+        nchunk++;
+        for (int t = first; t < end - 1; t++)
+          if (!joined[t])
+            nchunk++;
+      }
+    }
 
-    for (i = 0; i < _corpus.length; i++) {
-      _segments = _corpus[i];
+    final int[] tokens = new int[ntok];
+    final int[] sentOffsets = new int[c.size() + 1];
+    final int[] segOffsets = new int[nseg + 1];
+    final int[] chunkOffsets = new int[nchunk + 1];
+    for (int i = 0; i <= c.size(); i++)
+      sentOffsets[i] = c.segmentStart(i);
+    int k = 0, n = 0;
+    for (int seg = 0; seg < nseg; seg++) {
+      segOffsets[seg] = k;
+      final int first = c.tokenStart(seg), end = c.tokenEnd(seg);
+      if (end - first > 1) {
+        for (int t = first; t < end; t++) {
+          if (t == first || !joined[t - 1])
+            chunkOffsets[k++] = n;
+          tokens[n++] = c.token(t);
+        }
+      }
+    }
+    segOffsets[nseg] = k;
+    chunkOffsets[nchunk] = n;
 
-      clumpedCorpus[i] = new int[_segments.length][][];
+    return ChunkedSegmentedCorpus.fromOffsets(
+        tokens, sentOffsets, segOffsets, chunkOffsets, alpha);
+  }
 
-      for (j = 0; j < _segments.length; j++) {
+  /**
+   * Scores for each span of up to <code>factor.length + 1</code> words in a
+   * segment, one row per span length, reused from segment to segment
+   */
+  private static final class Pyramid {
+    double[] scores = new double[0];
+    int n;
 
-        _terms = _segments[j];
-        clumpsTmp = new int[_terms.length][];
-        numClump = 0;
+    void reset(final int m, final int _n) {
+      n = _n;
+      if (m * n > scores.length)
+        scores = new double[Math.max(m * n, 2 * scores.length)];
+    }
 
-        n = _terms.length;
-        m = Math.min(_terms.length - 1, factor.length);
-        m = Math.max(m, 0);
-        pyr = new double[m][];
+    double get(final int i, final int j) {
+      return scores[i * n + j];
+    }
 
-        for (pyrI = 0; pyrI < m; pyrI++)
-          pyr[pyrI] = new double[n - pyrI - 1];
+    void set(final int i, final int j, final double v) {
+      scores[i * n + j] = v;
+    }
+  }
 
-        for (pyrI = m - 1; pyrI >= 0; pyrI--) {
-          for (pyrJ = 0; pyrJ < n - pyrI - 1; pyrJ++) {
-            count = bigramCounts.get(_terms[pyrJ], _terms[pyrI + pyrJ + 1]);
-            sumP = sumParents(pyr, pyrI, pyrJ, m, n);
-            pyr[pyrI][pyrJ] = factor[pyrI] * count + sumP;
-          }
-        }
+  /** Decide which adjacent tokens of segment <code>seg</code> to chunk
+   * together, and mark them in <code>joined</code> */
+  private void chunkSegment(final StopSegmentCorpus c, final int seg,
+      final Pyramid pyr, final boolean[] joined) {
+    final int first = c.tokenStart(seg);
 
-        toclump = new boolean[Math.max(_terms.length - 1, 0)];
-        for (k = 0; k < _terms.length - 1; k++) {
-          doClump = pyr[0][k];
-          t1 = _terms[k];
-          t2 = _terms[k + 1];
-          dontClumpR = bigramCounts.get(t1, stopv);
-          dontClumpL = bigramCounts.get(stopv, t2);
-          toclump[k] = doClump >= dontClumpL + dontClumpR;
-        }
+    int k, m, n, pyrI, pyrJ, t1, t2;
 
-        index1 = index2 = 0;
-        if (toclump.length > 0) {
-          while (index2 <= toclump.length) {
-            while (index2 < toclump.length && toclump[index2])
-              index2++;
+    double count, doClump, dontClumpL, dontClumpR, sumP;
 
-            index2++;
-            clumpsTmp[numClump++] = Arrays.copyOfRange(_terms, index1, index2);
-            index1 = index2;
-          }
-        }
+    n = c.tokenEnd(seg) - first;
+    m = Math.min(n - 1, factor.length);
+    m = Math.max(m, 0);
+    pyr.reset(m, n);
 
-        clumpedCorpus[i][j] = Arrays.copyOf(clumpsTmp, numClump);
+    for (pyrI = m - 1; pyrI >= 0; pyrI--) {
+      for (pyrJ = 0; pyrJ < n - pyrI - 1; pyrJ++) {
+        count = bigramCounts.get(c.token(first + pyrJ), 
+            c.token(first + pyrI + pyrJ + 1));
+        sumP = sumParents(pyr, pyrI, pyrJ, m, n);
+        pyr.set(pyrI, pyrJ, factor[pyrI] * count + sumP);
       }
     }
 
-    return ChunkedSegmentedCorpus.fromArrays(clumpedCorpus, alpha);
+    for (k = 0; k < n - 1; k++) {
+      doClump = pyr.get(0, k);
+      t1 = c.token(first + k);
+      t2 = c.token(first + k + 1);
+      dontClumpR = bigramCounts.get(t1, stopv);
+      dontClumpL = bigramCounts.get(stopv, t2);
+      joined[first + k] = doClump >= dontClumpL + dontClumpR;
+    }
   }
 
-  private static double sumParents(double[][] pyr, int i, int j, int m, int n) {
+  private static double sumParents(Pyramid pyr, int i, int j, int m, int n) {
     assert 0 <= i;
     assert i < m;
     assert 0 <= j;
@@ -128,10 +275,10 @@ public class SimpleChunker implements Chunker {
     if (i == m - 1)
       return 0.;
     else if (j == 0)
-      return pyr[i + 1][0];
+      return pyr.get(i + 1, 0);
     else if (j == n - i - 2)
-      return pyr[i + 1][j - 1];
+      return pyr.get(i + 1, j - 1);
     else
-      return pyr[i + 1][j - 1] + pyr[i + 1][j];
+      return pyr.get(i + 1, j - 1) + pyr.get(i + 1, j);
   }
 }
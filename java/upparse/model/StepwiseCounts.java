@@ -0,0 +1,134 @@
+package upparse.model;
+
+import upparse.util.*;
+
+/**
+ * Running statistics for stepwise EM, <code>mu = (1 - eta) mu + eta s</code>.
+ *
+ * <p>Rather than scale every count on each step, the counts are kept divided
+ * by the product of the <code>(1 - eta)</code> factors so far, and a step adds
+ * only the counts of the words in its mini-batch. The transition totals, from
+ * which the models take their per-tag normalizers, and which words a stop
+ * tag has emitted are kept up to date the same way, so that a model can
+ * re-estimate the parameters of a few words without a pass over the rest.</p>
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+final class StepwiseCounts {
+
+  /** Below this the multiplier is folded back into the counts */
+  private static final double MIN_MULT = 1e-100;
+
+  private final ArcCounts counts;
+  private final Ipredicate isStopTag;
+  private final int ntag;
+
+  /** Counts summed over words, in the same units as the counts */
+  private final double[][] trans;
+
+  /** Words with a count for some stop tag */
+  private final boolean[] stopTerm;
+  private int numStopTerms = 0;
+
+  /** mu is this times the counts */
+  private double mult = 1;
+
+  /**
+   * @param _counts
+   *          An empty count store, which these statistics take over
+   * @param _isStopTag
+   *          Which tags are stop tags
+   */
+  StepwiseCounts(final ArcCounts _counts, final Ipredicate _isStopTag) {
+    counts = _counts;
+    isStopTag = _isStopTag;
+    ntag = counts.numTags();
+    trans = new double[ntag][ntag];
+    stopTerm = new boolean[counts.numTerms()];
+  }
+
+  /**
+   * Scale the statistics by <code>1 - eta</code> and add
+   * <code>eta * factor</code> times the counts of <code>batch</code> for the
+   * words <code>words</code>, which must be all of the words it has counts
+   * for
+   */
+  void step(final ArcCounts batch, final int[] words, final double eta,
+      final double factor) {
+    mult *= 1 - eta;
+    if (mult < MIN_MULT)
+      fold();
+
+    final double f = eta * factor / mult;
+    for (final int w : words) {
+      for (int r = 0; r < batch.numRows(w); r++) {
+        final int j = batch.rowTag(w, r);
+        final int[] succ = batch.successors(j);
+        for (int i = 0; i < succ.length; i++) {
+          final double c = f * batch.rowValue(w, r, i);
+          if (c == 0)
+            continue;
+          counts.add(j, w, succ[i], c);
+          trans[j][succ[i]] += c;
+          if (isStopTag.pred(j) && !stopTerm[w]) {
+            stopTerm[w] = true;
+            numStopTerms++;
+          }
+        }
+      }
+    }
+  }
+
+  /** Multiply the counts by the multiplier, and reset it to one */
+  private void fold() {
+    counts.scale(mult);
+    for (final double[] row : trans)
+      for (int k = 0; k < ntag; k++)
+        row[k] *= mult;
+
+    // tiny counts may have gone to zero
+    final double[] emiss = new double[ntag];
+    numStopTerms = 0;
+    for (int w = 0; w < stopTerm.length; w++) {
+      counts.emissionCounts(w, emiss);
+      stopTerm[w] = false;
+      for (int t = 0; t < ntag && !stopTerm[w]; t++)
+        stopTerm[w] = isStopTag.pred(t) && emiss[t] != 0;
+      if (stopTerm[w])
+        numStopTerms++;
+    }
+    mult = 1;
+  }
+
+  /** @return the counts, which times {@link #multiplier()} give mu */
+  ArcCounts counts() {
+    return counts;
+  }
+
+  double multiplier() {
+    return mult;
+  }
+
+  /**
+   * @return the counts summed over words, indexed by [tag][next tag], in the
+   *         same units as {@link #counts()}; do not modify
+   */
+  double[][] transitionCounts() {
+    return trans;
+  }
+
+  /** @return whether word <code>w</code> has a count for some stop tag */
+  boolean isStopTerm(final int w) {
+    return stopTerm[w];
+  }
+
+  int numStopTerms() {
+    return numStopTerms;
+  }
+
+  /** @return mu itself, after folding the multiplier into the counts */
+  ArcCounts scaledCounts() {
+    fold();
+    return counts;
+  }
+}
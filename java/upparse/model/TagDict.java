@@ -0,0 +1,137 @@
+package upparse.model;
+
+import java.util.*;
+
+/**
+ * The tags each word may take, kept as a flat bitset with one row per word
+ * and updated in place after each EM step. Only the words whose tags have
+ * changed are touched, and words that may take the same tags share one tag
+ * list, so decoding reads a handful of small arrays.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+final class TagDict {
+
+  private static final int[] NONE = new int[0];
+
+  private final int ntag, rowLen;
+
+  /** Row w, bits[w * rowLen] up to bits[(w + 1) * rowLen], holds its tags */
+  private final long[] bits;
+
+  private final int[][] lists;
+
+  /** Tag lists already in use, by their bitset rows */
+  private final Map<Row, int[]> shared = new HashMap<Row, int[]>();
+
+  private final long[] scratch;
+
+  TagDict(final int nterm, final int _ntag) {
+    ntag = _ntag;
+    rowLen = (ntag + 63) >>> 6;
+    bits = new long[nterm * rowLen];
+    lists = new int[nterm][];
+    Arrays.fill(lists, NONE);
+    scratch = new long[rowLen];
+  }
+
+  int numTerms() {
+    return lists.length;
+  }
+
+  /** @return tags word <code>w</code> may take, in order; do not modify */
+  int[] tags(final int w) {
+    return lists[w];
+  }
+
+  /**
+   * Bring the dictionary up to date with the emission probabilities of
+   * <code>model</code>: each word may take the tags that can emit it
+   *
+   * @return the number of words whose tags changed
+   */
+  int update(final SequenceModel model) {
+    int changed = 0;
+    for (int w = 0; w < lists.length; w++)
+      if (update(model, w))
+        changed++;
+    return changed;
+  }
+
+  /** As {@link #update(SequenceModel)}, for the words <code>words</code> only */
+  int update(final SequenceModel model, final int[] words) {
+    int changed = 0;
+    for (final int w : words)
+      if (update(model, w))
+        changed++;
+    return changed;
+  }
+
+  /** @return whether the tags of word <code>w</code> changed */
+  private boolean update(final SequenceModel model, final int w) {
+    Arrays.fill(scratch, 0);
+    for (int t = 0; t < ntag; t++)
+      if (model.termProb(t, w) != Double.NEGATIVE_INFINITY)
+        scratch[t >>> 6] |= 1L << t;
+    return set(w, scratch);
+  }
+
+  /** Set the tags of word <code>w</code>, as read from a model file */
+  void set(final int w, final int[] tags) {
+    Arrays.fill(scratch, 0);
+    for (final int t : tags)
+      scratch[t >>> 6] |= 1L << t;
+    set(w, scratch);
+  }
+
+  /** @return whether the row for <code>w</code> changed */
+  private boolean set(final int w, final long[] row) {
+    final int off = w * rowLen;
+    boolean same = true;
+    for (int i = 0; i < rowLen && same; i++)
+      same = bits[off + i] == row[i];
+    if (same)
+      return false;
+
+    System.arraycopy(row, 0, bits, off, rowLen);
+    final Row key = new Row(row.clone());
+    int[] tags = shared.get(key);
+    if (tags == null) {
+      tags = key.tags();
+      shared.put(key, tags);
+    }
+    lists[w] = tags;
+    return true;
+  }
+
+  /** A bitset row, compared by value */
+  private static final class Row {
+    private final long[] row;
+
+    Row(final long[] _row) {
+      row = _row;
+    }
+
+    int[] tags() {
+      int n = 0;
+      for (final long b : row)
+        n += Long.bitCount(b);
+      final int[] tags = new int[n];
+      n = 0;
+      for (int i = 0; i < row.length; i++)
+        for (long b = row[i]; b != 0; b &= b - 1)
+          tags[n++] = (i << 6) + Long.numberOfTrailingZeros(b);
+      return tags;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return o instanceof Row && Arrays.equals(row, ((Row) o).row);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(row);
+    }
+  }
+}
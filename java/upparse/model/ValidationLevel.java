@@ -0,0 +1,61 @@
+package upparse.model;
+
+import java.util.*;
+
+/**
+ * How thoroughly models check that their probability distributions sum to
+ * one after each update. These checks sweep the whole vocabulary for every
+ * tag or tag pair, so they are set separately from JVM assertions: a failed
+ * check throws an {@link AssertionError} whether or not assertions are
+ * enabled, and turning the checks down leaves the other assertions alone.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public enum ValidationLevel {
+
+  /** No checks */
+  OFF,
+
+  /**
+   * Every sixteenth row of each distribution, from a random starting row, so
+   * at least one row each time
+   */
+  SAMPLED,
+
+  /** Every row of each distribution */
+  FULL;
+
+  private static final int SAMPLE_STRIDE = 16;
+
+  private static final Random rand = new Random(1);
+
+  /** @return the rows out of <code>n</code> to check, in order */
+  public int[] rows(final int n) {
+    if (this == OFF || n == 0)
+      return new int[0];
+
+    int start = 0, step = 1;
+    if (this == SAMPLED) {
+      synchronized (rand) {
+        start = rand.nextInt(Math.min(n, SAMPLE_STRIDE));
+      }
+      step = SAMPLE_STRIDE;
+    }
+
+    final int[] rows = new int[(n - start + step - 1) / step];
+    for (int i = 0; i < rows.length; i++)
+      rows[i] = start + i * step;
+    return rows;
+  }
+
+  /** @return whether <code>sum</code> is close enough to one */
+  static boolean sumsToOne(final double sum) {
+    return Math.abs(sum - 1) < 1e-5;
+  }
+
+  /** Fail with <code>message</code> unless <code>ok</code> */
+  static void check(final boolean ok, final String message) {
+    if (!ok)
+      throw new AssertionError(message);
+  }
+}
@@ -0,0 +1,67 @@
+package upparse.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fixed number of worker threads for splitting model computations over
+ * contiguous pieces of a corpus. The underlying pool is started on first use.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+final class WorkerPool {
+
+  private final int numThreads;
+  private ForkJoinPool pool = null;
+
+  WorkerPool(final int _numThreads) {
+    assert _numThreads > 0;
+    numThreads = _numThreads;
+  }
+
+  int numThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Split <code>0..n)</code> into at most one contiguous range per worker
+   *
+   * @return the start of each range, followed by <code>n</code>
+   */
+  int[] split(final int n) {
+    final int nrange = Math.max(1, Math.min(numThreads, n));
+    final int[] starts = new int[nrange + 1];
+    for (int i = 0; i <= nrange; i++)
+      starts[i] = (int) ((long) n * i / nrange);
+    return starts;
+  }
+
+  /** Run the tasks, and return their results in order */
+  <T> List<T> invokeAll(final List<Callable<T>> tasks) {
+    if (pool == null)
+      pool = new ForkJoinPool(numThreads);
+    final List<T> results = new ArrayList<T>(tasks.size());
+    for (final Future<T> f : pool.invokeAll(tasks)) {
+      try {
+        results.add(f.get());
+      } catch (final InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch (final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw new RuntimeException(cause);
+      }
+    }
+    return results;
+  }
+
+  void shutdown() {
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+}
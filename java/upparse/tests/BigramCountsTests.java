@@ -0,0 +1,43 @@
+package upparse.tests;
+
+import java.util.*;
+
+import org.junit.*;
+
+import upparse.model.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for bigram count table
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public class BigramCountsTests {
+
+  @Test public void testCountsMatchMap() {
+    final Random r = new Random(5);
+    final BigramCounts counts = new BigramCounts(4);
+    final Map<List<Integer>, Double> expected =
+      new HashMap<List<Integer>, Double>();
+    for (int i = 0; i < 20000; i++) {
+      final int w1 = r.nextInt(300), w2 = r.nextInt(300);
+      counts.incr(w1, w2);
+      final List<Integer> k = Arrays.asList(w1, w2);
+      final Double d = expected.get(k);
+      expected.put(k, d == null ? 1. : d + 1.);
+    }
+    assertEquals(expected.size(), counts.size());
+    for (int w1 = 0; w1 < 300; w1++) {
+      for (int w2 = 0; w2 < 300; w2++) {
+        final Double d = expected.get(Arrays.asList(w1, w2));
+        assertEquals(d == null ? 0 : d, counts.get(w1, w2), 0);
+      }
+    }
+
+    final BigramCounts twice = new BigramCounts();
+    twice.addAll(counts);
+    twice.addAll(counts);
+    assertEquals(2 * counts.get(3, 7), twice.get(3, 7), 0);
+    assertEquals(counts.size(), twice.size());
+  }
+}
@@ -5,6 +5,7 @@ import java.util.*;
 import org.junit.*;
 
 import upparse.corpus.*;
+import upparse.model.*;
 
 import static org.junit.Assert.*;
 
@@ -112,4 +113,78 @@ public class ClumpedCorpusTests {
     assertFalse(iter.hasNext());
 
   }
+
+  @Test public void testFlatCorpusArrays() {
+    Alpha alpha = new Alpha();
+    int[][][][] arrays = 
+      new int[][][][] { { { { 1, 2, 3 }, { 4 } }, { { 5 } } },
+                        { },
+                        { { { 6, 7 } }, { } } };
+
+    ChunkedSegmentedCorpus corpus = 
+      ChunkedSegmentedCorpus.fromArrays(arrays, alpha);
+    assertEquals(3, corpus.nSentences());
+    assertEquals(7, corpus.numTokens());
+    assertTrue(Arrays.deepEquals(arrays, corpus.getArrays()));
+    assertArrayEquals(new int[] { 6, 7 }, corpus.tokens(2));
+
+    assertTrue(Arrays.deepEquals(
+        new int[][][][] { { }, { { { 6, 7 } }, { } } }, 
+        corpus.filter(2).getArrays()));
+
+    corpus.reverse();
+    assertTrue(Arrays.deepEquals(
+        new int[][][][] { { { }, { { 7, 6 } } }, 
+                          { }, 
+                          { { { 5 } }, { { 4 }, { 3, 2, 1 } } } }, 
+        corpus.getArrays()));
+
+    int[][][] stopArrays = new int[][][] { { { 1, 2 }, { 3 } }, { }, { { 4 } } };
+    StopSegmentCorpus stop = StopSegmentCorpus.fromArrays(alpha, stopArrays);
+    assertTrue(Arrays.deepEquals(stopArrays, stop.getArrays()));
+    assertEquals(3, stop.sentenceLength(0));
+    assertTrue(Arrays.deepEquals(new int[][][] { { }, { { 4 } } },
+        stop.filterLen(1).getArrays()));
+    stop.reverse();
+    assertTrue(Arrays.deepEquals(
+        new int[][][] { { { 4 } }, { }, { { 3 }, { 2, 1 } } },
+        stop.getArrays()));
+  }
+
+  @Test public void testParallelSimpleChunker() {
+    Alpha alpha = new Alpha();
+    String[] vocab = new String[] { 
+        "the", "a", "dog", "cat", "lazy", "quick", "brown", "fox" };
+    Random r = new Random(23);
+    int[][][] sents = new int[60][][];
+    for (int i = 0; i < sents.length; i++) {
+      sents[i] = new int[1 + r.nextInt(3)][];
+      for (int j = 0; j < sents[i].length; j++) {
+        sents[i][j] = new int[1 + r.nextInt(6)];
+        for (int k = 0; k < sents[i][j].length; k++)
+          sents[i][j][k] = alpha.getCode(vocab[r.nextInt(vocab.length)]);
+      }
+    }
+    StopSegmentCorpus train = StopSegmentCorpus.fromArrays(alpha, sents);
+
+    double[] factor = new double[] { 2, 1, 1 };
+    ChunkedSegmentedCorpus serial = SimpleChunker.fromStopSegmentCorpus(
+        alpha, train, factor).getChunkedCorpus(train);
+    ChunkedSegmentedCorpus parallel = 
+      SimpleChunker.fromStopSegmentCorpus(alpha, train, factor, 3)
+      .getChunkedCorpus(train);
+    assertTrue(Arrays.deepEquals(serial.getArrays(), parallel.getArrays()));
+  }
+
+  @Test public void testLabeledBracketSetFromString() {
+    Alpha alpha = new Alpha();
+    LabeledBracketSet tree = LabeledBracketSet.fromString(
+        "((S (NP (DT the)\t(NN dog)) ($( -LRB-) (VP (VBZ sleeps))))", alpha);
+    assertArrayEquals(
+        new String[] { "the", "dog", "-LRB-", "sleeps" }, tree.getTokensS());
+    assertArrayEquals(
+        new String[] { "DT", "NN", "$(", "VBZ" }, tree.getPos());
+    assertEquals(8, tree.numBrackets());
+    assertEquals("(((the dog) -LRB- sleeps))", tree.toString());
+  }
 }
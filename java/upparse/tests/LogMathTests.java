@@ -0,0 +1,53 @@
+package upparse.tests;
+
+import java.util.*;
+
+import org.junit.*;
+
+import upparse.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for log semiring addition
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public class LogMathTests {
+
+  @Test public void testLog1pExpNegWithinBound() {
+    for (int i = 0; i <= 500000; i++) {
+      final double d = i * 1e-4;
+      assertEquals(Math.log1p(Math.exp(-d)), LogMath.log1pExpNeg(d), 3.2e-10);
+    }
+    assertEquals(0, LogMath.log1pExpNeg(Double.POSITIVE_INFINITY), 0);
+  }
+
+  @Test public void testLogaddMatchesUtil() {
+    final Random r = new Random(11);
+    for (int i = 0; i < 10000; i++) {
+      final double x = -50 * r.nextDouble(), y = -50 * r.nextDouble();
+      assertEquals(Util.logadd(x, y), LogMath.logadd(x, y), 3.2e-10);
+    }
+    final double neginf = Double.NEGATIVE_INFINITY;
+    assertEquals(-3, LogMath.logadd(-3, neginf), 0);
+    assertEquals(-3, LogMath.logadd(neginf, -3), 0);
+    assertEquals(neginf, LogMath.logadd(neginf, neginf), 0);
+  }
+
+  @Test public void testLogsumexp() {
+    final Random r = new Random(13);
+    final double[] xs = new double[50];
+    double s = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < xs.length; i++) {
+      xs[i] = -1000 - 30 * r.nextDouble();
+      s = Util.logadd(s, xs[i]);
+    }
+    assertEquals(s, LogMath.logsumexp(xs, xs.length), 1e-12);
+    assertEquals(xs[0], LogMath.logsumexp(xs, 1), 0);
+
+    xs[1] = Double.NEGATIVE_INFINITY;
+    assertEquals(Util.logadd(xs[0], xs[2]),
+        LogMath.logsumexp(new double[] { xs[0], xs[1], xs[2] }, 3), 1e-12);
+    assertEquals(Double.NEGATIVE_INFINITY, LogMath.logsumexp(xs, 0), 0);
+  }
+}
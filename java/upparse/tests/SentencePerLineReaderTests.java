@@ -0,0 +1,119 @@
+package upparse.tests;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.junit.*;
+
+import upparse.corpus.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for reading sentence-per-line files
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public class SentencePerLineReaderTests {
+
+  private static final int DEFAULT_WINDOW = 1 << 26;
+
+  @After public void resetWindow() throws Exception {
+    setWindow(DEFAULT_WINDOW);
+  }
+
+  /** The reader is package-private, so its window is set reflectively */
+  private static void setWindow(final int n) throws Exception {
+    final Method m = Class.forName("upparse.corpus.SentencePerLineReader")
+      .getDeclaredMethod("setWindow", int.class);
+    m.setAccessible(true);
+    m.invoke(null, n);
+  }
+
+  private static String file(final String text) throws IOException {
+    final File f = File.createTempFile("spl", ".txt");
+    f.deleteOnExit();
+    final OutputStream out = new FileOutputStream(f);
+    out.write(text.getBytes("UTF-8"));
+    out.close();
+    return f.getPath();
+  }
+
+  /** @return the corpus read from the files, as nested arrays of strings */
+  private static String[][][] read(final int numSent, final String... files)
+      throws Exception {
+    final Alpha alpha = new Alpha();
+    final int[][][] arrays = CorpusUtil.splStopSegmentCorpus(
+        alpha, files, numSent, false).getArrays();
+    final String[][][] strs = new String[arrays.length][][];
+    for (int i = 0; i < arrays.length; i++) {
+      strs[i] = new String[arrays[i].length][];
+      for (int j = 0; j < arrays[i].length; j++) {
+        strs[i][j] = new String[arrays[i][j].length];
+        for (int k = 0; k < arrays[i][j].length; k++)
+          strs[i][j][k] = alpha.getString(arrays[i][j][k]);
+      }
+    }
+    return strs;
+  }
+
+  private static void assertCorpus(final String[][][] expected,
+      final String[][][] actual) {
+    assertTrue(Arrays.deepToString(actual),
+        Arrays.deepEquals(expected, actual));
+  }
+
+  @Test public void testMultibyteCharAtWindowEdge() throws Exception {
+    // two, three and four byte characters
+    final String ete = "\u00e9t\u00e9", euro = "\u20ac", 
+      clef = "\ud834\udd1e";
+    final String text = "ab " + ete + " " + euro + "\n" + clef + " cd\n";
+    final String f = file(text);
+    final String[][][] expected = new String[][][] {
+        { { "ab", ete, euro } },
+        { { clef, "cd" } } };
+    final int nbytes = text.getBytes("UTF-8").length;
+    for (int w = 4; w <= nbytes; w++) {
+      setWindow(w);
+      assertCorpus(expected, read(-1, f));
+    }
+  }
+
+  @Test public void testCRLFSplitByCharBufferOverflow() throws Exception {
+    // the char buffer holds 64K chars, so the \r fills it and the \n starts
+    // the next one
+    final char[] longToken = new char[(1 << 16) - 1];
+    Arrays.fill(longToken, 'x');
+    final String tok = new String(longToken);
+    final String f = file(tok + "\r\nab\r\ncd\r\n");
+    final String[][][] expected = new String[][][] {
+        { { tok } }, { { "ab" } }, { { "cd" } } };
+    assertCorpus(expected, read(-1, f));
+
+    // the same with the \r\n split across windows
+    setWindow(1 << 16);
+    assertCorpus(expected, read(-1, f));
+  }
+
+  @Test public void testStopAfterNumSent() throws Exception {
+    final String f1 = file("a\nb c\nd\ne\n"), f2 = file("f\ng\n");
+    assertCorpus(new String[][][] { { { "a" } }, { { "b", "c" } } },
+        read(2, f1, f2));
+    assertCorpus(
+        new String[][][] { { { "a" } }, { { "b", "c" } }, { { "d" } },
+                           { { "e" } }, { { "f" } } },
+        read(5, f1, f2));
+
+    setWindow(4);
+    assertCorpus(new String[][][] { { { "a" } }, { { "b", "c" } } },
+        read(2, f1, f2));
+  }
+
+  @Test public void testBlankAndWhitespaceLines() throws Exception {
+    final String f = file("a b\n\n \t \nc . d\r\n\r\ne");
+    assertCorpus(
+        new String[][][] { { { "a", "b" } }, { }, { },
+                           { { "c" }, { "d" } }, { }, { { "e" } } },
+        read(-1, f));
+  }
+}
@@ -0,0 +1,332 @@
+package upparse.tests;
+
+import java.util.*;
+
+import org.junit.*;
+
+import upparse.corpus.*;
+import upparse.model.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for sequence model training and decoding
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public class SequenceModelTests {
+
+  private static final String[] VOCAB = new String[] {
+    "the", "a", "dog", "cat", "lazy", "quick", "brown", "fox", "jumped",
+    "over", "sleeps", "on", "sunday", "grizzly", "bear", "it" };
+
+  /** Small random corpus, the same one for every call */
+  private static StopSegmentCorpus corpus(final Alpha alpha) {
+    final Random r = new Random(23);
+    final int[][][] sents = new int[60][][];
+    for (int i = 0; i < sents.length; i++) {
+      sents[i] = new int[1 + r.nextInt(3)][];
+      for (int j = 0; j < sents[i].length; j++) {
+        sents[i][j] = new int[1 + r.nextInt(6)];
+        for (int k = 0; k < sents[i][j].length; k++)
+          sents[i][j][k] = alpha.getCode(VOCAB[r.nextInt(VOCAB.length)]);
+      }
+    }
+    return StopSegmentCorpus.fromArrays(alpha, sents);
+  }
+
+  private static SequenceModel model(final SequenceModelType type,
+      final String encoderType) throws Exception {
+    final Alpha alpha = new Alpha();
+    final TagEncoder encoder =
+      TagEncoder.getBIOEncoder(encoderType, KeepStop.STOP, alpha);
+    final StopSegmentCorpus train = corpus(alpha);
+    final SimpleChunker c = SimpleChunker.fromStopSegmentCorpus(
+        alpha, train, new double[] { 2, 1, 1 });
+    return SequenceModel.mleEstimate(
+        type, c.getChunkedCorpus(train), encoder, .1);
+  }
+
+  private static void assertSameEM(final SequenceModel serial,
+      final SequenceModel other) {
+    for (int i = 0; i < 3; i++) {
+      serial.emUpdateFromTrain();
+      other.emUpdateFromTrain();
+      assertEquals(serial.currPerplex(), other.currPerplex(), 
+          1e-8 * serial.currPerplex());
+    }
+    final int[] tokens = serial.getOrig();
+    assertArrayEquals(serial.tag(tokens), other.tag(tokens));
+    for (int j = 0; j < serial.numTags(); j++)
+      for (int w = 0; w < serial.numTerms(); w++)
+        for (int k = 0; k < serial.numTags(); k++)
+          assertEquals(
+              serial.arcprob(j, w, k), other.arcprob(j, w, k), 1e-8);
+  }
+
+  @Test public void testParallelEMMatchesSerialPRLG() throws Exception {
+    final SequenceModel parallel = model(SequenceModelType.PRLG, "BIO");
+    parallel.setNumThreads(4);
+    assertSameEM(model(SequenceModelType.PRLG, "BIO"), parallel);
+  }
+
+  @Test public void testParallelEMMatchesSerialHMM() throws Exception {
+    final SequenceModel parallel = model(SequenceModelType.HMM, "BILO");
+    parallel.setNumThreads(3);
+    assertSameEM(model(SequenceModelType.HMM, "BILO"), parallel);
+  }
+
+  @Test public void testScaledForwardBackwardPRLG() throws Exception {
+    final SequenceModel scaled = model(SequenceModelType.PRLG, "BIO");
+    scaled.setForwardBackwardType(ForwardBackwardType.SCALED);
+    assertSameEM(model(SequenceModelType.PRLG, "BIO"), scaled);
+  }
+
+  @Test public void testScaledForwardBackwardHMM() throws Exception {
+    final SequenceModel scaled = model(SequenceModelType.HMM, "BIO_GP_NOSTOP");
+    scaled.setForwardBackwardType(ForwardBackwardType.SCALED);
+    scaled.setNumThreads(2);
+    assertSameEM(model(SequenceModelType.HMM, "BIO_GP_NOSTOP"), scaled);
+  }
+
+  @Test public void testStreamedEMMatchesInMemory() throws Exception {
+    final SequenceModel streamed = model(SequenceModelType.PRLG, "BIO");
+    final Alpha alpha = streamed.getEncoder().getAlpha();
+    final StopSegmentCorpus train = corpus(alpha);
+    final int[][][] sents = train.getArrays();
+    final List<StopSegmentCorpus> batches = new ArrayList<StopSegmentCorpus>();
+    for (int i = 0; i < sents.length; i += 7)
+      batches.add(StopSegmentCorpus.fromArrays(alpha,
+          Arrays.copyOfRange(sents, i, Math.min(i + 7, sents.length))));
+    final SimpleChunker c = SimpleChunker.fromStopSegmentCorpus(
+        alpha, train, new double[] { 2, 1, 1 });
+    streamed.setTrainStream(
+        streamed.getEncoder().clumpedTokenStream(c.chunkedCorpora(batches)));
+    streamed.setNumThreads(2);
+    assertSameEM(model(SequenceModelType.PRLG, "BIO"), streamed);
+  }
+
+  /** Pieces cannot be cut where the boundary token has more than one tag */
+  @Test(expected = IllegalStateException.class)
+  public void testStreamedEMRejectsAmbiguousBoundaries() throws Exception {
+    final SequenceModel streamed = model(SequenceModelType.PRLG, "BIO_GP");
+    assertFalse(streamed.getEncoder().hasSingleTagEos());
+    final Alpha alpha = streamed.getEncoder().getAlpha();
+    final int[][][] sents = corpus(alpha).getArrays();
+    final List<StopSegmentCorpus> batches = new ArrayList<StopSegmentCorpus>();
+    for (int i = 0; i < sents.length; i += 7)
+      batches.add(StopSegmentCorpus.fromArrays(alpha,
+          Arrays.copyOfRange(sents, i, Math.min(i + 7, sents.length))));
+    streamed.setTrainStream(streamed.getEncoder().tokenStream(batches));
+    streamed.emUpdateFromTrain();
+  }
+
+  /** Streamed from a compiled corpus, reading only some of the sentences */
+  @Test public void testStreamedSoftCountsMatchInMemory() throws Exception {
+    final Alpha alpha = new Alpha();
+    TagEncoder.getBIOEncoder("BIO", KeepStop.STOP, alpha);
+    final int[][][] sents = corpus(alpha).getArrays();
+    final int[][][] all = Arrays.copyOf(sents, sents.length + 3);
+    // the last sentences are long, and hold the only uses of the last words
+    for (int i = sents.length; i < all.length; i++) {
+      all[i] = new int[][] { new int[20] };
+      for (int k = 0; k < 20; k++)
+        all[i][0][k] = alpha.getCode("w" + i + "_" + k);
+    }
+    final java.io.File f = java.io.File.createTempFile("stream", ".bin");
+    f.deleteOnExit();
+    CompiledCorpus.write(StopSegmentCorpus.fromArrays(alpha, all), f.getPath());
+    final String[] files = new String[] { f.getPath() };
+
+    // filtered by length, and cut off by number of sentences
+    for (final int[] opts : new int[][] { { -1, 12 }, { 30, -1 } }) {
+      final int numSent = opts[0], filterLen = opts[1];
+      final Alpha memAlpha = new Alpha();
+      final TagEncoder memEncoder =
+        TagEncoder.getBIOEncoder("BIO", KeepStop.STOP, memAlpha);
+      final SequenceModel mem = SequenceModel.softEstimate(
+          SequenceModelType.PRLG, CorpusUtil.stopSegmentCorpus(memAlpha,
+              files, CorpusType.BIN, numSent, filterLen, false, false),
+          memEncoder, .1);
+
+      final Alpha streamAlpha = new Alpha();
+      final TagEncoder streamEncoder =
+        TagEncoder.getBIOEncoder("BIO", KeepStop.STOP, streamAlpha);
+      final Iterable<int[]> pieces = streamEncoder.tokenStream(
+          CompiledCorpus.batches(streamAlpha, files, 7, numSent, filterLen,
+              false));
+      final SequenceModel streamed = SequenceModel.fromCounts(
+          SequenceModelType.PRLG, streamEncoder.softCounts(pieces),
+          streamEncoder, .1);
+      streamed.setTrainStream(pieces);
+
+      assertTrue(streamAlpha.size() > streamed.numTerms());
+      assertEquals(mem.numTerms(), streamed.numTerms());
+      assertSameEM(mem, streamed);
+    }
+  }
+
+  @Test public void testStepwiseFirstPassInOneBatchMatchesEM()
+  throws Exception {
+    final SequenceModel batch = model(SequenceModelType.PRLG, "BIO");
+    final SequenceModel stepwise = model(SequenceModelType.PRLG, "BIO");
+    stepwise.setStepwiseEM(1000, .7);
+    batch.emUpdateFromTrain();
+    stepwise.emUpdateFromTrain();
+    assertEquals(batch.currPerplex(), stepwise.currPerplex(),
+        1e-8 * batch.currPerplex());
+    for (int j = 0; j < batch.numTags(); j++)
+      for (int w = 0; w < batch.numTerms(); w++)
+        for (int k = 0; k < batch.numTags(); k++)
+          assertEquals(
+              batch.arcprob(j, w, k), stepwise.arcprob(j, w, k), 1e-8);
+  }
+
+  /** Mini-batches of 10 sentences span the streamed pieces of 7 */
+  @Test public void testStreamedStepwiseMatchesInMemory() throws Exception {
+    final SequenceModel streamed = model(SequenceModelType.PRLG, "BIO");
+    final Alpha alpha = streamed.getEncoder().getAlpha();
+    final StopSegmentCorpus train = corpus(alpha);
+    final int[][][] sents = train.getArrays();
+    final List<StopSegmentCorpus> batches = new ArrayList<StopSegmentCorpus>();
+    for (int i = 0; i < sents.length; i += 7)
+      batches.add(StopSegmentCorpus.fromArrays(alpha,
+          Arrays.copyOfRange(sents, i, Math.min(i + 7, sents.length))));
+    final SimpleChunker c = SimpleChunker.fromStopSegmentCorpus(
+        alpha, train, new double[] { 2, 1, 1 });
+    streamed.setTrainStream(
+        streamed.getEncoder().clumpedTokenStream(c.chunkedCorpora(batches)));
+    streamed.setStepwiseEM(10, .7);
+    final SequenceModel mem = model(SequenceModelType.PRLG, "BIO");
+    mem.setStepwiseEM(10, .7);
+    assertSameEM(mem, streamed);
+  }
+
+  @Test(expected = SequenceModelError.class)
+  public void testStepwiseRejectsAmbiguousBoundaries() throws Exception {
+    model(SequenceModelType.PRLG, "BIO_GP").setStepwiseEM(10, .7);
+  }
+
+  @Test public void testParallelStepwiseMatchesSerial() throws Exception {
+    final SequenceModel serial = model(SequenceModelType.HMM, "BILO");
+    final SequenceModel parallel = model(SequenceModelType.HMM, "BILO");
+    serial.setStepwiseEM(8, .6);
+    parallel.setStepwiseEM(8, .6);
+    parallel.setNumThreads(3);
+    assertSameEM(serial, parallel);
+  }
+
+  @Test public void testValidationRows() {
+    assertEquals(0, ValidationLevel.OFF.rows(1000).length);
+
+    final int[] full = ValidationLevel.FULL.rows(1000);
+    assertEquals(1000, full.length);
+    for (int i = 0; i < full.length; i++)
+      assertEquals(i, full[i]);
+
+    for (int n = 1; n < 2000; n += 37) {
+      final int[] sampled = ValidationLevel.SAMPLED.rows(n);
+      assertTrue(sampled.length >= n / 16 && sampled.length <= n / 16 + 1);
+      assertTrue(sampled[0] < Math.min(n, 16));
+      assertTrue(sampled[sampled.length - 1] < n);
+      for (int i = 1; i < sampled.length; i++)
+        assertEquals(16, sampled[i] - sampled[i - 1]);
+    }
+  }
+
+  /** @return HMM counts with one NaN, breaking the distributions of a tag */
+  private static ArcCounts brokenCounts(final TagEncoder encoder,
+      final int[] tokens) {
+    final ArcCounts counts = encoder.softCounts(tokens);
+    final boolean[][] constraints = encoder.constraints();
+    for (int j = 0; j < constraints.length; j++)
+      for (int k = 0; k < constraints.length; k++)
+        if (!constraints[j][k]) {
+          counts.add(j, tokens[0], k, Double.NaN);
+          return counts;
+        }
+    throw new AssertionError("no arcs allowed");
+  }
+
+  @Test public void testValidationLevels() throws Exception {
+    final ValidationLevel level = SequenceModel.getValidationLevel();
+    final Alpha alpha = new Alpha();
+    final TagEncoder encoder =
+      TagEncoder.getBIOEncoder("BILO", KeepStop.STOP, alpha);
+    final int[] tokens = encoder.tokensFromStopSegmentCorpus(corpus(alpha));
+    try {
+      SequenceModel.setValidationLevel(ValidationLevel.OFF);
+      SequenceModel.fromCounts(SequenceModelType.HMM,
+          brokenCounts(encoder, tokens), encoder, .1);
+
+      SequenceModel.setValidationLevel(ValidationLevel.FULL);
+      try {
+        SequenceModel.fromCounts(SequenceModelType.HMM,
+            brokenCounts(encoder, tokens), encoder, .1);
+        fail("FULL validation missed a broken distribution");
+      } catch (AssertionError e) { }
+
+      // each check looks at one tag in so few, so it catches the broken one
+      // only some of the time
+      SequenceModel.setValidationLevel(ValidationLevel.SAMPLED);
+      int caught = 0;
+      for (int i = 0; i < 64; i++) {
+        try {
+          SequenceModel.fromCounts(SequenceModelType.HMM,
+              brokenCounts(encoder, tokens), encoder, .1);
+        } catch (AssertionError e) {
+          caught++;
+        }
+      }
+      assertTrue(caught > 0 && caught < 64);
+
+      for (final ValidationLevel v : ValidationLevel.values()) {
+        SequenceModel.setValidationLevel(v);
+        model(SequenceModelType.PRLG, "BIO").emUpdateFromTrain();
+        model(SequenceModelType.HMM, "BILO").emUpdateFromTrain();
+      }
+    } finally {
+      SequenceModel.setValidationLevel(level);
+    }
+  }
+
+  @Test public void testDecoderWorkspaceReuse() throws Exception {
+    final SequenceModel m = model(SequenceModelType.PRLG, "BIO");
+    m.emUpdateFromTrain();
+    final int[] tokens = m.getOrig();
+    final DecoderWorkspace ws = new DecoderWorkspace();
+    for (final int n : new int[] { 12, tokens.length, 7 }) {
+      final int[] prefix = Arrays.copyOf(tokens, n);
+      assertArrayEquals(m.tag(prefix), m.tag(prefix, ws));
+    }
+  }
+
+  private static void assertSaveLoad(final SequenceModel m) throws Exception {
+    m.emUpdateFromTrain();
+    final java.io.File f = java.io.File.createTempFile("upparse", ".model");
+    f.deleteOnExit();
+    m.save(f.getPath());
+
+    final Alpha alpha = new Alpha();
+    final SequenceModel loaded = SequenceModel.load(f.getPath(), alpha);
+    assertEquals(m.getType(), loaded.getType());
+    assertEquals(m.numTerms(), alpha.size());
+    for (int j = 0; j < m.numTags(); j++) {
+      assertEquals(m.initTagProb(j), loaded.initTagProb(j), 0);
+      for (int w = 0; w < m.numTerms() + 1; w++) {
+        assertEquals(m.termProb(j, w), loaded.termProb(j, w), 0);
+        for (int k = 0; k < m.numTags(); k++)
+          assertEquals(m.arcprob(j, w, k), loaded.arcprob(j, w, k), 0);
+      }
+    }
+    final int[] tokens = m.getOrig();
+    assertArrayEquals(m.tag(tokens), loaded.tag(tokens));
+  }
+
+  @Test public void testSaveLoadPRLG() throws Exception {
+    assertSaveLoad(model(SequenceModelType.PRLG, "BIO"));
+  }
+
+  @Test public void testSaveLoadHMM() throws Exception {
+    assertSaveLoad(model(SequenceModelType.HMM, "BILO"));
+  }
+}
@@ -0,0 +1,80 @@
+package upparse.util;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.log;
+import static java.lang.Math.log1p;
+
+/**
+ * Addition in the log semiring, for forward-backward over log probabilities.
+ * The correction term log(1 + exp(-d)) is read from a table of cubic Hermite
+ * pieces, 32 to the unit, rather than computed with an exp and a log. The
+ * interpolation error is at most h^4 / 384 * max |f''''| = 3.2e-10 for this
+ * function with h = 1/32, and beyond d = 40 the term is below 4.3e-18 and
+ * taken as zero, so {@link #logadd(double, double)} is within 3.2e-10 of the
+ * exact sum. The batched {@link #logsumexp(double[], int)} is exact up to
+ * rounding.
+ *
+ * @author eponvert@utexas.edu (Elias Ponvert)
+ */
+public final class LogMath {
+
+  private static final double DMAX = 40;
+
+  /** Table pieces per unit of d; a power of two, so offsets are exact */
+  private static final int STEPS = 32;
+
+  /** Coefficients of each piece, in powers of the offset into it */
+  private static final double[] COEFF = new double[4 * (int) (DMAX * STEPS)];
+
+  static {
+    final double h = 1. / STEPS;
+    for (int i = 0; i < COEFF.length / 4; i++) {
+      final double d0 = i * h, d1 = d0 + h;
+      final double f0 = log1p(exp(-d0)), f1 = log1p(exp(-d1));
+      final double m0 = -1 / (1 + exp(d0)), m1 = -1 / (1 + exp(d1));
+      final double slope = (f1 - f0) / h;
+      COEFF[4 * i] = f0;
+      COEFF[4 * i + 1] = m0;
+      COEFF[4 * i + 2] = (3 * slope - 2 * m0 - m1) / h;
+      COEFF[4 * i + 3] = (m0 + m1 - 2 * slope) / (h * h);
+    }
+  }
+
+  private LogMath() { }
+
+  /** @return log(1 + exp(-d)), for d &gt;= 0 */
+  public static double log1pExpNeg(final double d) {
+    if (d >= DMAX)
+      return 0;
+    final int i = (int) (d * STEPS);
+    final double u = d - (double) i / STEPS;
+    final int o = 4 * i;
+    return COEFF[o]
+      + u * (COEFF[o + 1] + u * (COEFF[o + 2] + u * COEFF[o + 3]));
+  }
+
+  /** @return log(exp(x) + exp(y)) */
+  public static double logadd(final double x, final double y) {
+    if (x >= y)
+      return y == Double.NEGATIVE_INFINITY ? x : x + log1pExpNeg(x - y);
+    else
+      return x == Double.NEGATIVE_INFINITY ? y : y + log1pExpNeg(y - x);
+  }
+
+  /**
+   * @return log of the sum of exp(xs[i]) for i &lt; n, or negative infinity if
+   *         n is zero
+   */
+  public static double logsumexp(final double[] xs, final int n) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < n; i++)
+      max = Math.max(max, xs[i]);
+    if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+      return max;
+
+    double sum = 0;
+    for (int i = 0; i < n; i++)
+      sum += exp(xs[i] - max);
+    return max + log(sum);
+  }
+}
@@ -67,7 +67,7 @@ public class Util {
     return newSent;
   }
 
-  private static int[] reverse(int[] seg) {
+  public static int[] reverse(int[] seg) {
     int n = seg.length;
     int[] newSeg = new int[n];
     for (int i = 0; i < n; i++)
@@ -75,6 +75,18 @@ public class Util {
     return newSeg;
   }
 
+  /**
+   * Reverse an array of offsets, whose last element is the number of items
+   * they index into, giving the offsets of the items in reverse order
+   */
+  public static int[] reverseOffsets(int[] offsets) {
+    int n = offsets.length, total = offsets[n - 1];
+    int[] newOffsets = new int[n];
+    for (int i = 0; i < n; i++)
+      newOffsets[i] = total - offsets[n - i - 1];
+    return newOffsets;
+  }
+
   public static int[][][][] reverse(int[][][][] corpus) {
     int n = corpus.length;
     int[][][][] newCorpus = new int[n][][][];